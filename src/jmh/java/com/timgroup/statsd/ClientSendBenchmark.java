@@ -0,0 +1,132 @@
+package com.timgroup.statsd;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures what the calling threads pay to send a metric through the asynchronous clients to a local UDP sink, or
+ * to a {@link Transport} that discards packets to leave the socket out: throughput and the distribution of
+ * per-call latency. The consumer thread and the socket are only measured indirectly, as a queue that fills up makes
+ * calls drop messages instead; the number of messages dropped and packets received during each trial are printed on
+ * tear down.
+ *
+ * <p>Producer contention is the point, so run these at several thread counts, e.g. {@code -t 1}, {@code -t 4}
+ * and {@code -t max}.</p>
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ClientSendBenchmark {
+    private static final String[] TAGS = {"env:production", "service:checkout", "region:us-east-1"};
+
+    @Param({"nonblocking", "disruptor", "disruptor-format-on-consumer"})
+    public String client;
+
+    @Param({"udp", "discard"})
+    public String transport;
+
+    private UdpSink sink;
+    private DiscardingTransport discarding;
+    private StatsDClient statsd;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        sink = new UdpSink();
+        discarding = "discard".equals(transport) ? new DiscardingTransport() : null;
+        final String[] constantTags = {"env:production"};
+        switch (client) {
+            case "nonblocking":
+                statsd = NonBlockingStatsDClient.builder()
+                        .withPrefix("my.prefix")
+                        .withAddress("127.0.0.1", sink.port())
+                        .withTransport(discarding)
+                        .withConstantTags(constantTags)
+                        .build();
+                break;
+            case "disruptor":
+            case "disruptor-format-on-consumer":
+                statsd = DisruptorStatsDClient.builder()
+                        .withPrefix("my.prefix")
+                        .withAddress("127.0.0.1", sink.port())
+                        .withTransport(discarding)
+                        .withConstantTags(constantTags)
+                        .withFormatOnConsumer(client.endsWith("format-on-consumer"))
+                        .build();
+                break;
+            default:
+                throw new IllegalArgumentException("unknown client: " + client);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        statsd.close();
+        final Map<String, Long> dropped = statsd instanceof NonBlockingStatsDClient
+                ? ((NonBlockingStatsDClient) statsd).getDroppedMessages()
+                : ((DisruptorStatsDClient) statsd).getDroppedMessages();
+        sink.close();
+        System.out.println();
+        final long packets = discarding != null ? discarding.packets : sink.packets.get();
+        final long bytes = discarding != null ? discarding.bytes : sink.bytes.get();
+        System.out.println("dropped: " + dropped + ", packets received: " + packets + ", bytes received: " + bytes);
+    }
+
+    @Benchmark
+    public void count() {
+        statsd.count("requests", 1);
+    }
+
+    @Benchmark
+    public void countWithTags() {
+        statsd.count("requests", 1, TAGS);
+    }
+
+    @Benchmark
+    public void histogramWithTags() {
+        statsd.recordHistogramValue("latency", 42, TAGS);
+    }
+
+    /**
+     * Counts the packets the client's sender thread hands over, and drops them.
+     */
+    private static final class DiscardingTransport implements Transport {
+        private volatile long packets;
+        private volatile long bytes;
+
+        @Override
+        public int packetSize() {
+            return DatagramTransport.UDP_PACKET_SIZE_BYTES;
+        }
+
+        @Override
+        @SuppressWarnings("NonAtomicOperationOnVolatileField")
+        public void send(final ByteBuffer packet) {
+            // only the sender thread writes
+            packets++;
+            bytes += packet.remaining();
+            packet.position(packet.limit());
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.timgroup.statsd;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures rendering metrics into dogstatsd lines on the calling thread, without any queue or socket: the
+ * client under test hands every line to a {@link Blackhole}. Run with {@code -prof gc} to see what each call
+ * allocates.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EncodingBenchmark {
+    private static final String[] TAGS = {"env:production", "service:checkout", "region:us-east-1"};
+
+    private BlackholeClient client;
+    private ByteBuffer buffer;
+
+    @Setup
+    public void setup(final Blackhole blackhole) {
+        client = new BlackholeClient(blackhole);
+        buffer = ByteBuffer.allocate(1400);
+    }
+
+    @Benchmark
+    public void count() {
+        client.count("requests", 1);
+    }
+
+    @Benchmark
+    public void countWithTags() {
+        client.count("requests", 1, TAGS);
+    }
+
+    @Benchmark
+    public void sampledCountWithTags() {
+        client.count("requests", 1, 0.5, TAGS);
+    }
+
+    @Benchmark
+    public void doubleGaugeWithTags() {
+        client.recordGaugeValue("load", 0.125, TAGS);
+    }
+
+    @Benchmark
+    public void histogramWithTags() {
+        client.recordHistogramValue("latency", 42, TAGS);
+    }
+
+    @Benchmark
+    public void event() {
+        client.recordEvent(Event.builder().withTitle("deployed").withText("version 1.2.3").build(), TAGS);
+    }
+
+    @Benchmark
+    public String tagString() {
+        return StringMessageStatsDClient.tagString(TAGS, "|#env:production");
+    }
+
+    @Benchmark
+    public int encodeLine() {
+        final StringBuilder sb = MessageEncoder.appendMetric(MessageEncoder.builder(), "my.prefix.", "requests", 1,
+                MetricType.COUNTER, MessageEncoder.NO_SAMPLE_RATE, TAGS, "|#env:production");
+        buffer.clear();
+        StringMessageStatsDClient.encode(sb, buffer);
+        return buffer.position();
+    }
+
+    /**
+     * Renders metrics like the real clients, with a prefix and a constant tag, but only consumes the
+     * resulting String.
+     */
+    static final class BlackholeClient extends StringMessageStatsDClient {
+        private final Blackhole blackhole;
+
+        BlackholeClient(final Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        protected void send(final String message) {
+            blackhole.consume(message);
+        }
+
+        @Override
+        public String getPrefix() {
+            return "my.prefix.";
+        }
+
+        @Override
+        public String getConstantTagsRendered() {
+            return "|#env:production";
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
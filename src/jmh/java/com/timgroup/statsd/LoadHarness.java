@@ -0,0 +1,263 @@
+package com.timgroup.statsd;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives the asynchronous clients end to end against a {@link TimestampingReceiver} and reports, for every
+ * combination of client and producer threads, the throughput the producers achieved, how many messages were
+ * dropped by the client or lost on the way, and percentiles of the time from the call on the client to the packet
+ * arriving.
+ *
+ * <p>Every message is a count whose value is the {@link System#nanoTime()} of the call, so latencies include
+ * queueing, batching and the socket. Options are given as {@code --name=value}:</p>
+ * <ul>
+ *     <li>{@code clients} - any of {@code nonblocking}, {@code disruptor} and {@code disruptor-format-on-consumer},
+ *     comma separated (default all)</li>
+ *     <li>{@code transports} - {@code udp} and/or {@code uds} for a Unix domain datagram socket, comma separated
+ *     (default {@code udp})</li>
+ *     <li>{@code threads} - producer thread counts, comma separated (default {@code 1,4})</li>
+ *     <li>{@code rate} - messages per second per producer, 0 for as fast as possible (default 100000)</li>
+ *     <li>{@code duration} - seconds measured per scenario (default 10)</li>
+ *     <li>{@code warmup} - seconds run before each scenario and not measured (default 2)</li>
+ *     <li>{@code tags} - tags per message (default 3)</li>
+ *     <li>{@code receive-buffer} - the receiver's socket buffer size in bytes (default 4 MiB)</li>
+ *     <li>{@code linger} - microseconds a started packet may wait for more messages, see {@code withLinger}
+ *     (default 0)</li>
+ *     <li>{@code packet-size} - the maximum datagram size in bytes, see {@code withMaxPacketSize}, or {@code auto}
+ *     for {@code withAutoPacketSize} (default the transport's)</li>
+ * </ul>
+ *
+ * <pre>
+ * mvn -Pbenchmarks -DskipTests package
+ * java -cp target/benchmarks.jar com.timgroup.statsd.LoadHarness --threads=1,2,4,8 --rate=50000
+ * </pre>
+ */
+public final class LoadHarness {
+    private static final String ROW = "%-29s %-4s %7s %9s %11s %11s %9s %9s %9s %7s %9s %9s %9s %9s %9s%n";
+
+    private final Map<String, String> options;
+
+    private LoadHarness(final Map<String, String> options) {
+        this.options = options;
+    }
+
+    public static void main(final String[] args) throws Exception {
+        final Map<String, String> options = new HashMap<>();
+        for (final String arg : args) {
+            final int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals < 0) {
+                throw new IllegalArgumentException("expected --name=value: " + arg);
+            }
+            options.put(arg.substring(2, equals), arg.substring(equals + 1));
+        }
+        new LoadHarness(options).run();
+    }
+
+    private String option(final String name, final String defaultValue) {
+        final String value = options.get(name);
+        return value != null ? value : defaultValue;
+    }
+
+    private void run() throws Exception {
+        final String[] clients = option("clients", "nonblocking,disruptor,disruptor-format-on-consumer").split(",");
+        final String[] transports = option("transports", "udp").split(",");
+        final String[] threadCounts = option("threads", "1,4").split(",");
+        final long rate = Long.parseLong(option("rate", "100000"));
+        final long duration = Long.parseLong(option("duration", "10"));
+        final long warmup = Long.parseLong(option("warmup", "2"));
+        final String[] tags = new String[Integer.parseInt(option("tags", "3"))];
+        for (int i = 0; i < tags.length; i++) {
+            tags[i] = "tag" + i + ":value" + i;
+        }
+        final int receiveBuffer = Integer.parseInt(option("receive-buffer", String.valueOf(4 << 20)));
+        final long lingerMicros = Long.parseLong(option("linger", "0"));
+        final String packetSize = option("packet-size", "default");
+
+        System.out.printf(Locale.US, "rate per producer: %s, duration: %ds, tags: %d, linger: %dus, packet size: %s%n",
+                rate > 0 ? rate + "/s" : "unlimited", duration, tags.length, lingerMicros, packetSize);
+        System.out.printf(Locale.US, ROW, "client", "via", "threads", "sent", "sent/s", "received", "packets",
+                "dropped", "lost", "loss%", "p50 us", "p90 us", "p99 us", "p99.9 us", "max us");
+        for (final String transport : transports) {
+            for (final String client : clients) {
+                for (final String threadCount : threadCounts) {
+                    final int threads = Integer.parseInt(threadCount.trim());
+                    if (warmup > 0) {
+                        scenario(client.trim(), transport.trim(), threads, rate, warmup, tags, receiveBuffer,
+                                lingerMicros, packetSize);
+                    }
+                    scenario(client.trim(), transport.trim(), threads, rate, duration, tags, receiveBuffer,
+                            lingerMicros, packetSize).print();
+                }
+            }
+        }
+    }
+
+    private static Report scenario(final String client, final String transport, final int threads, final long rate,
+                                   final long seconds, final String[] tags, final int receiveBuffer,
+                                   final long lingerMicros, final String packetSize) throws Exception {
+        final File socketDirectory = Files.createTempDirectory("statsd-harness").toFile();
+        final String socketPath = new File(socketDirectory, "dsd.socket").getPath();
+        final TimestampingReceiver receiver;
+        final StatsDClient statsd;
+        switch (transport) {
+            case "udp":
+                receiver = new TimestampingReceiver(receiveBuffer).start();
+                statsd = newClient(client, lingerMicros, packetSize,
+                        builder -> builder.withAddress("127.0.0.1", receiver.port()),
+                        builder -> builder.withAddress("127.0.0.1", receiver.port()));
+                break;
+            case "uds":
+                receiver = new TimestampingReceiver(socketPath, receiveBuffer).start();
+                statsd = newClient(client, lingerMicros, packetSize, builder -> builder.withUnixSocket(socketPath),
+                        builder -> builder.withUnixSocket(socketPath));
+                break;
+            default:
+                throw new IllegalArgumentException("unknown transport: " + transport);
+        }
+        final AtomicLong sent = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Thread> producers = new ArrayList<>();
+        final long intervalNanos = rate > 0 ? TimeUnit.SECONDS.toNanos(1) / rate : 0;
+        final long[] deadline = new long[1];
+        for (int i = 0; i < threads; i++) {
+            final Thread producer = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (final InterruptedException e) {
+                    return;
+                }
+                long count = 0;
+                long next = System.nanoTime();
+                long now;
+                while ((now = System.nanoTime()) < deadline[0]) {
+                    if (intervalNanos > 0) {
+                        if (now < next) {
+                            // park through long gaps, spin through short ones
+                            if (next - now > 50000) {
+                                LockSupport.parkNanos(next - now - 20000);
+                            }
+                            continue;
+                        }
+                        next += intervalNanos;
+                    }
+                    statsd.count("harness.latency", System.nanoTime(), tags);
+                    count++;
+                }
+                sent.addAndGet(count);
+            }, "statsd-harness-producer-" + i);
+            producers.add(producer);
+            producer.start();
+        }
+
+        final long startNanos = System.nanoTime();
+        deadline[0] = startNanos + TimeUnit.SECONDS.toNanos(seconds);
+        start.countDown();
+        for (final Thread producer : producers) {
+            producer.join();
+        }
+        final long elapsedNanos = System.nanoTime() - startNanos;
+
+        statsd.close();
+        final long dropped = dropped(statsd);
+        // wait for what the client sent on close to arrive
+        while (receiver.lines() < sent.get() - dropped
+                && System.nanoTime() - receiver.lastReceiveNanos() < TimeUnit.MILLISECONDS.toNanos(500)) {
+            Thread.sleep(10);
+        }
+        final TimestampingReceiver.Result received = receiver.stop();
+        new File(socketPath).delete();
+        socketDirectory.delete();
+        return new Report(client, transport, threads, sent.get(), elapsedNanos, dropped, received);
+    }
+
+    private static StatsDClient newClient(final String client, final long lingerMicros, final String packetSize,
+                                          final Endpoint<NonBlockingStatsDClient.Builder> nonBlocking,
+                                          final Endpoint<DisruptorStatsDClient.Builder> disruptor) throws Exception {
+        switch (client) {
+            case "nonblocking":
+                final NonBlockingStatsDClient.Builder nonBlockingBuilder = nonBlocking.apply(
+                        NonBlockingStatsDClient.builder())
+                        .withLinger(lingerMicros, TimeUnit.MICROSECONDS)
+                        .withAutoPacketSize("auto".equals(packetSize));
+                if (packetSize.matches("[0-9]+")) {
+                    nonBlockingBuilder.withMaxPacketSize(Integer.parseInt(packetSize));
+                }
+                return nonBlockingBuilder.build();
+            case "disruptor":
+            case "disruptor-format-on-consumer":
+                final DisruptorStatsDClient.Builder disruptorBuilder = disruptor.apply(DisruptorStatsDClient.builder())
+                        .withFormatOnConsumer(client.endsWith("format-on-consumer"))
+                        .withLinger(lingerMicros, TimeUnit.MICROSECONDS)
+                        .withAutoPacketSize("auto".equals(packetSize));
+                if (packetSize.matches("[0-9]+")) {
+                    disruptorBuilder.withMaxPacketSize(Integer.parseInt(packetSize));
+                }
+                return disruptorBuilder.build();
+            default:
+                throw new IllegalArgumentException("unknown client: " + client);
+        }
+    }
+
+    private static long dropped(final StatsDClient statsd) {
+        final Map<String, Long> dropped = statsd instanceof NonBlockingStatsDClient
+                ? ((NonBlockingStatsDClient) statsd).getDroppedMessages()
+                : ((DisruptorStatsDClient) statsd).getDroppedMessages();
+        long total = 0;
+        for (final long count : dropped.values()) {
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * Points a client builder at the receiver.
+     */
+    private interface Endpoint<B> {
+        B apply(B builder) throws Exception;
+    }
+
+    private static final class Report {
+        private final String client;
+        private final String transport;
+        private final int threads;
+        private final long sent;
+        private final long elapsedNanos;
+        private final long dropped;
+        private final TimestampingReceiver.Result received;
+
+        Report(final String client, final String transport, final int threads, final long sent,
+               final long elapsedNanos, final long dropped, final TimestampingReceiver.Result received) {
+            this.client = client;
+            this.transport = transport;
+            this.threads = threads;
+            this.sent = sent;
+            this.elapsedNanos = elapsedNanos;
+            this.dropped = dropped;
+            this.received = received;
+        }
+
+        void print() {
+            final LatencyHistogram latencies = received.latencies;
+            System.out.printf(Locale.US, ROW, client, transport, threads, sent,
+                    String.format(Locale.US, "%.0f", sent * 1e9 / elapsedNanos),
+                    received.lines, received.packets, dropped, Math.max(0, sent - dropped - received.lines),
+                    String.format(Locale.US, "%.3f", sent > 0 ? 100.0 * (sent - received.lines) / sent : 0),
+                    micros(latencies.percentile(50)), micros(latencies.percentile(90)),
+                    micros(latencies.percentile(99)), micros(latencies.percentile(99.9)), micros(latencies.max()));
+        }
+
+        private static String micros(final long nanos) {
+            return String.format(Locale.US, "%.1f", nanos / 1000.0);
+        }
+    }
+}
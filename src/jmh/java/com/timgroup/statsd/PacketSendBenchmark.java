@@ -0,0 +1,95 @@
+package com.timgroup.statsd;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures what a client's sender thread pays per packet to encode a packet's worth of messages into its send buffer
+ * and send it over UDP, with the buffer on the heap or off it. The JDK copies a heap buffer into a temporary direct
+ * buffer on every send, which the direct buffer the clients use avoids; run with {@code -prof gc} to also see what
+ * each packet allocates. {@code encodeAndWrite} writes to a connected channel instead, as clients built with
+ * {@code withConnectedSocket} do.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PacketSendBenchmark {
+    private static final String MESSAGE = "my.prefix.requests:1|c|#env:production,service:checkout,region:us-east-1";
+
+    @Param({"heap", "direct"})
+    public String buffer;
+
+    @Param({"1400", "8192"})
+    public int packetSize;
+
+    private UdpSink sink;
+    private DatagramChannel channel;
+    private DatagramChannel connectedChannel;
+    private InetSocketAddress address;
+    private ByteBuffer packet;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        sink = new UdpSink();
+        channel = DatagramChannel.open();
+        address = new InetSocketAddress("127.0.0.1", sink.port());
+        connectedChannel = DatagramChannel.open().connect(address);
+        packet = "direct".equals(buffer) ? ByteBuffer.allocateDirect(packetSize) : ByteBuffer.allocate(packetSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        channel.close();
+        connectedChannel.close();
+        sink.close();
+    }
+
+    @Benchmark
+    public int encode() {
+        fill();
+        return packet.remaining();
+    }
+
+    @Benchmark
+    public int encodeAndSend() throws IOException {
+        fill();
+        return channel.send(packet, address);
+    }
+
+    @Benchmark
+    public int encodeAndWrite() throws IOException {
+        fill();
+        return connectedChannel.write(packet);
+    }
+
+    private void fill() {
+        packet.clear();
+        final int length = MessageEncoder.utf8Length(MESSAGE);
+        MessageEncoder.putUtf8(MESSAGE, packet);
+        while (packet.remaining() > length) {
+            packet.put((byte) '\n');
+            MessageEncoder.putUtf8(MESSAGE, packet);
+        }
+        packet.flip();
+    }
+}
@@ -0,0 +1,67 @@
+package com.timgroup.statsd;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how many metrics the calling threads get into {@link DisruptorStatsDClient}'s ring buffers per
+ * microsecond with one or more shards, sending to a local UDP sink. Formatting on the consumer keeps publishing
+ * down to claiming and publishing a slot, so contention on the ring buffer's sequence is most of what is left.
+ *
+ * <p>Sharding only pays off with many producer threads on as many cores, so run this with {@code -t max} on the
+ * machine it is meant for. Messages dropped because the consumers fell behind are printed on tear down, as
+ * dropping is cheaper than publishing.</p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ShardedClientBenchmark {
+    private static final String[] TAGS = {"env:production", "service:checkout", "region:us-east-1"};
+
+    @Param({"1", "2", "4", "8"})
+    public int shards;
+
+    private UdpSink sink;
+    private DisruptorStatsDClient statsd;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        sink = new UdpSink();
+        statsd = DisruptorStatsDClient.builder()
+                .withPrefix("my.prefix")
+                .withAddress("127.0.0.1", sink.port())
+                .withConstantTags("env:production")
+                .withFormatOnConsumer(true)
+                .withShards(shards)
+                .build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        statsd.close();
+        sink.close();
+        System.out.println();
+        System.out.println("dropped: " + statsd.getDroppedMessages() + ", packets received: " + sink.packets.get());
+    }
+
+    @Benchmark
+    public void countWithTags() {
+        statsd.count("requests", 1, TAGS);
+    }
+}
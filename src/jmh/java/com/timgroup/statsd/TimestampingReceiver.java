@@ -0,0 +1,169 @@
+package com.timgroup.statsd;
+
+import jnr.unixsocket.UnixDatagramChannel;
+import jnr.unixsocket.UnixSocketAddress;
+import jnr.unixsocket.UnixSocketOptions;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Receives the packets sent to a local UDP port or Unix domain socket on a dedicated thread and, for every line,
+ * records the time since the {@link System#nanoTime()} the line carries as its value. Packets are read into a single
+ * direct buffer and parsed in place, so the receiver keeps up with far higher rates than
+ * {@code DummyStatsDServer}-style receivers that turn each packet into Strings.
+ *
+ * <p>Lines must look like {@code <name>:<nanoTime>|<type>[|...]}, as sent by {@link LoadHarness}.</p>
+ */
+final class TimestampingReceiver implements AutoCloseable {
+    private final DatagramChannel channel;
+    private final Thread thread;
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private long packets;
+    private long bytes;
+    private long malformed;
+    private volatile long lastReceiveNanos = System.nanoTime();
+    private volatile long lines;
+
+    /**
+     * Listens on an ephemeral UDP port, see {@link #port()}.
+     */
+    TimestampingReceiver(final int receiveBufferSize) throws IOException {
+        this(DatagramChannel.open().bind(new InetSocketAddress("127.0.0.1", 0)));
+        channel.socket().setReceiveBufferSize(receiveBufferSize);
+    }
+
+    /**
+     * Listens on a Unix domain datagram socket at the given path.
+     */
+    TimestampingReceiver(final String socketPath, final int receiveBufferSize) throws IOException {
+        this(UnixDatagramChannel.open().bind(new UnixSocketAddress(socketPath)));
+        channel.setOption(UnixSocketOptions.SO_RCVBUF, receiveBufferSize);
+        // closing the channel doesn't interrupt a blocked receive, so wake up to check for it
+        channel.setOption(UnixSocketOptions.SO_RCVTIMEO, 100);
+    }
+
+    private TimestampingReceiver(final DatagramChannel channel) {
+        this.channel = channel;
+        thread = new Thread(this::receive, "statsd-harness-receiver");
+        thread.setDaemon(true);
+    }
+
+    /**
+     * Starts receiving; the socket buffers packets until then.
+     */
+    TimestampingReceiver start() {
+        thread.start();
+        return this;
+    }
+
+    int port() throws IOException {
+        return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+    }
+
+    /**
+     * Returns the number of lines received so far.
+     */
+    long lines() {
+        return lines;
+    }
+
+    /**
+     * Returns the {@link System#nanoTime()} when the last packet arrived.
+     */
+    long lastReceiveNanos() {
+        return lastReceiveNanos;
+    }
+
+    private void receive() {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(65536);
+        while (channel.isOpen()) {
+            try {
+                buffer.clear();
+                channel.receive(buffer);
+            } catch (final IOException e) {
+                // closed, or timed out on a Unix socket
+                continue;
+            }
+            final long now = System.nanoTime();
+            lastReceiveNanos = now;
+            packets++;
+            bytes += buffer.position();
+            buffer.flip();
+            parse(buffer, now);
+        }
+    }
+
+    private void parse(final ByteBuffer buffer, final long now) {
+        long received = lines;
+        while (buffer.hasRemaining()) {
+            // skip the name
+            while (buffer.hasRemaining() && buffer.get() != ':') {
+            }
+            long value = 0;
+            boolean negative = false;
+            boolean valid = false;
+            byte b = 0;
+            while (buffer.hasRemaining()) {
+                b = buffer.get();
+                if (b == '-') {
+                    negative = true;
+                } else if (b >= '0' && b <= '9') {
+                    value = value * 10 + (b - '0');
+                    valid = true;
+                } else {
+                    break;
+                }
+            }
+            // skip the rest of the line
+            while (b != '\n' && buffer.hasRemaining()) {
+                b = buffer.get();
+            }
+            if (valid) {
+                latencies.record(now - (negative ? -value : value));
+                received++;
+            } else {
+                malformed++;
+            }
+        }
+        lines = received;
+    }
+
+    /**
+     * Stops receiving and returns what was received. Packets still in the socket buffer are lost.
+     */
+    Result stop() throws InterruptedException, IOException {
+        channel.close();
+        thread.join();
+        return new Result(packets, bytes, lines, malformed, latencies);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        try {
+            thread.join();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    static final class Result {
+        final long packets;
+        final long bytes;
+        final long lines;
+        final long malformed;
+        final LatencyHistogram latencies;
+
+        Result(final long packets, final long bytes, final long lines, final long malformed,
+               final LatencyHistogram latencies) {
+            this.packets = packets;
+            this.bytes = bytes;
+            this.lines = lines;
+            this.malformed = malformed;
+            this.latencies = latencies;
+        }
+    }
+}
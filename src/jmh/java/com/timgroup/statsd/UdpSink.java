@@ -0,0 +1,57 @@
+package com.timgroup.statsd;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Receives and discards the packets sent to a local UDP port as fast as it can, so the clients being measured
+ * don't slow down on a full socket buffer or an unreachable port.
+ */
+final class UdpSink implements AutoCloseable {
+    private final DatagramChannel channel;
+    private final Thread thread;
+    final AtomicLong packets = new AtomicLong();
+    final AtomicLong bytes = new AtomicLong();
+
+    UdpSink() throws IOException {
+        channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress("127.0.0.1", 0));
+        thread = new Thread(this::receive, "statsd-benchmark-sink");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    int port() throws IOException {
+        return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+    }
+
+    private void receive() {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(65536);
+        try {
+            while (true) {
+                buffer.clear();
+                channel.receive(buffer);
+                packets.incrementAndGet();
+                bytes.addAndGet(buffer.position());
+            }
+        } catch (final ClosedChannelException e) {
+            // closed
+        } catch (final IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        try {
+            thread.join();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.timgroup.statsd;
+
+import com.lmax.disruptor.BlockingWaitStrategy;
+import com.lmax.disruptor.BusySpinWaitStrategy;
+import com.lmax.disruptor.SleepingWaitStrategy;
+import com.lmax.disruptor.TimeoutBlockingWaitStrategy;
+import com.lmax.disruptor.WaitStrategy;
+import com.lmax.disruptor.YieldingWaitStrategy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Measures how long a call to {@link DisruptorStatsDClient} takes with each wait strategy and producer type,
+ * sending to a local UDP sink, and prints how busy the consumer thread kept its CPU under load and for a second
+ * without messages on tear down. The strategies that never park the consumer spare producers from waking it up,
+ * so they publish faster, but they keep a core busy even while idle.
+ *
+ * <p>The single producer type is only safe with one producer thread, so leave {@code -t} at 1 for it. Strategies
+ * that spin need a core of their own to show their latency; on a machine with fewer cores than threads they slow
+ * the producers down instead.</p>
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WaitStrategyBenchmark {
+    private static final String[] TAGS = {"env:production", "service:checkout", "region:us-east-1"};
+
+    @Param({"blocking", "sleeping", "yielding", "busy-spin", "timeout-blocking"})
+    public String waitStrategy;
+
+    @Param({"multi", "single"})
+    public String producerType;
+
+    private final List<Thread> consumers = new CopyOnWriteArrayList<>();
+    private UdpSink sink;
+    private DisruptorStatsDClient statsd;
+    private long startNanos;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        sink = new UdpSink();
+        statsd = DisruptorStatsDClient.builder()
+                .withPrefix("my.prefix")
+                .withAddress("127.0.0.1", sink.port())
+                .withConstantTags("env:production")
+                .withFormatOnConsumer(true)
+                .withWaitStrategy(waitStrategy(waitStrategy))
+                .withSingleProducer("single".equals(producerType))
+                .withThreadFactory(r -> {
+                    final Thread thread = new Thread(r, "statsd-disruptor-benchmark");
+                    thread.setDaemon(true);
+                    consumers.add(thread);
+                    return thread;
+                })
+                .build();
+        startNanos = System.nanoTime();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        final long loadedNanos = System.nanoTime() - startNanos;
+        final long loadedCpuNanos = consumerCpuNanos();
+        Thread.sleep(1000);
+        final long idleCpuNanos = consumerCpuNanos() - loadedCpuNanos;
+        statsd.close();
+        sink.close();
+        System.out.println();
+        System.out.printf("consumer CPU: %.0f%% under load, %.0f%% idle, dropped: %s, packets received: %d%n",
+                100.0 * loadedCpuNanos / loadedNanos, 100.0 * idleCpuNanos / TimeUnit.SECONDS.toNanos(1),
+                statsd.getDroppedMessages(), sink.packets.get());
+    }
+
+    @Benchmark
+    public void countWithTags() {
+        statsd.count("requests", 1, TAGS);
+    }
+
+    private long consumerCpuNanos() {
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long cpuNanos = 0;
+        for (final Thread consumer : consumers) {
+            cpuNanos += Math.max(threads.getThreadCpuTime(consumer.getId()), 0);
+        }
+        return cpuNanos;
+    }
+
+    private static Supplier<? extends WaitStrategy> waitStrategy(String name) {
+        switch (name) {
+            case "blocking":
+                return BlockingWaitStrategy::new;
+            case "sleeping":
+                return SleepingWaitStrategy::new;
+            case "yielding":
+                return YieldingWaitStrategy::new;
+            case "busy-spin":
+                return BusySpinWaitStrategy::new;
+            case "timeout-blocking":
+                return () -> new TimeoutBlockingWaitStrategy(10, TimeUnit.MILLISECONDS);
+            default:
+                throw new IllegalArgumentException("unknown wait strategy " + name);
+        }
+    }
+}
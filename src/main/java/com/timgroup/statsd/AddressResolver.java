@@ -0,0 +1,142 @@
+package com.timgroup.statsd;
+
+import java.io.Closeable;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the address of a host name and port up to date in the background, so a client's sender thread only reads
+ * the latest one instead of looking the host name up itself.
+ *
+ * <p>The host name is resolved again once the time to live has passed. When that fails, the last address stays in
+ * use and resolution is retried sooner, after a second at first and twice as long after every further failure, up
+ * to the time to live. All resolvers share a single daemon thread, which stops once the last resolver is
+ * closed.</p>
+ */
+final class AddressResolver implements Callable<InetSocketAddress>, Closeable {
+    static final long DEFAULT_TTL_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private static final long MIN_RETRY_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * Looks a host name up; {@link InetAddress#getByName} but in tests.
+     */
+    interface Lookup {
+        InetAddress lookup(String hostname) throws UnknownHostException;
+    }
+
+    /** Both guarded by the class. */
+    private static ScheduledExecutorService scheduler;
+    private static int resolvers;
+
+    private final String hostname;
+    private final int port;
+    private final long ttlNanos;
+    private final long minRetryNanos;
+    private final Lookup lookup;
+    private volatile InetSocketAddress address;
+    /** Used by the scheduler thread only. */
+    private long retryNanos;
+    /** Guarded by this. */
+    private ScheduledFuture<?> next;
+    private boolean closed;
+
+    private AddressResolver(final String hostname, final int port, final long ttlNanos, final long minRetryNanos,
+                            final Lookup lookup, final InetSocketAddress address) {
+        this.hostname = hostname;
+        this.port = port;
+        this.ttlNanos = ttlNanos;
+        this.minRetryNanos = minRetryNanos;
+        this.retryNanos = minRetryNanos;
+        this.lookup = lookup;
+        this.address = address;
+    }
+
+    /**
+     * Resolves the host name right away, then keeps resolving it in the background until closed.
+     *
+     * @throws UnknownHostException
+     *     if the host name can't be resolved now
+     */
+    static AddressResolver start(final String hostname, final int port, final long ttlNanos)
+            throws UnknownHostException {
+        return start(hostname, port, ttlNanos, MIN_RETRY_NANOS, InetAddress::getByName);
+    }
+
+    /**
+     * Like {@link #start(String, int, long)}, with the first retry after a failure and the lookup given.
+     */
+    static AddressResolver start(final String hostname, final int port, final long ttlNanos,
+                                 final long minRetryNanos, final Lookup lookup) throws UnknownHostException {
+        final AddressResolver resolver = new AddressResolver(hostname, port, ttlNanos, minRetryNanos, lookup,
+                new InetSocketAddress(lookup.lookup(hostname), port));
+        synchronized (AddressResolver.class) {
+            if (resolvers++ == 0) {
+                scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                    final Thread thread = new Thread(r, "statsd-dns-resolver");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            resolver.schedule(ttlNanos);
+        }
+        return resolver;
+    }
+
+    /**
+     * Returns the latest address.
+     */
+    @Override
+    public InetSocketAddress call() {
+        return address;
+    }
+
+    private void refresh() {
+        long delay;
+        try {
+            address = new InetSocketAddress(lookup.lookup(hostname), port);
+            retryNanos = minRetryNanos;
+            delay = ttlNanos;
+        } catch (final UnknownHostException | RuntimeException e) {
+            // keep sending to the last address meanwhile; whatever the failure, a refresh must get scheduled again
+            // or the address would never be updated anymore
+            delay = Math.min(retryNanos, ttlNanos);
+            retryNanos = Math.min(retryNanos * 2, ttlNanos);
+        }
+        synchronized (AddressResolver.class) {
+            schedule(delay);
+        }
+    }
+
+    /**
+     * Must be called holding the class lock, so the scheduler can't be shut down meanwhile.
+     */
+    private synchronized void schedule(final long delayNanos) {
+        if (!closed) {
+            next = scheduler.schedule(this::refresh, delayNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (AddressResolver.class) {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                next.cancel(false);
+            }
+            if (--resolvers == 0) {
+                scheduler.shutdownNow();
+                scheduler = null;
+            }
+        }
+    }
+}
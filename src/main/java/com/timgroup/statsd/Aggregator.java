@@ -0,0 +1,428 @@
+package com.timgroup.statsd;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Client-side aggregation: keeps metrics in memory per aspect and tags and emits them every flush interval,
+ * instead of one line per call. Counter deltas are summed, only the last value of a gauge is kept and set
+ * members are deduplicated, which is what the agent would have made of them anyway. Histogram and timer
+ * samples are not aggregated but packed, i.e. sent as one {@code name:v1:v2:v3|h} line per aspect and tags
+ * (dogstatsd protocol 1.1), starting a new line whenever one would grow beyond the maximum line length.
+ *
+ * <p>Contexts that saw no updates during an interval are removed from the table. In case a caller looked an
+ * entry up just before it was removed and only adds to it afterwards, removed entries are drained once more
+ * on the following flush before being dropped.</p>
+ */
+final class Aggregator {
+    /**
+     * Receives the aggregated values at every flush.
+     */
+    interface Sink {
+        void count(MetricKey key, long value);
+
+        void gauge(MetricKey key, long value);
+
+        void gauge(MetricKey key, double value);
+
+        void set(MetricKey key, String value);
+
+        /**
+         * Receives histogram or timer samples as their values joined by {@code ':'}.
+         */
+        void samples(MetricKey key, String values);
+    }
+
+    /** Beyond this many contexts, new ones are not aggregated but sent as they come. */
+    static final int MAX_CONTEXTS = 10000;
+
+    private interface Drain<V> {
+        /**
+         * Emits and resets the context's aggregated value, returning false if there was nothing to emit.
+         */
+        boolean emit(MetricKey key, V value);
+    }
+
+    private final Sink sink;
+    private final StatsDClientErrorHandler errorHandler;
+    private final ConcurrentHashMap<MetricKey, Count> counters = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<MetricKey, LastValue> gauges = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<MetricKey, Set<String>> sets = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<MetricKey, Samples> samples = new ConcurrentHashMap<>();
+    private final int maxLineLength;
+    private final int lineOverhead;
+    private List<Runnable> retired = new ArrayList<>();
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        final Thread thread = new Thread(r);
+        thread.setName("statsd-aggregator-" + thread.getName());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param maxLineLength
+     *     the length in bytes packed sample lines must not exceed, unless a single sample already does
+     * @param lineOverhead
+     *     the length in bytes every line takes besides its aspect, tags and values, i.e. prefix and constant tags
+     */
+    @SuppressWarnings("FutureReturnValueIgnored")
+    Aggregator(final Sink sink, final long flushInterval, final TimeUnit unit, final int maxLineLength,
+               final int lineOverhead, final StatsDClientErrorHandler errorHandler) {
+        this.sink = sink;
+        this.errorHandler = errorHandler;
+        this.maxLineLength = maxLineLength;
+        this.lineOverhead = lineOverhead;
+        scheduler.scheduleAtFixedRate(this::flushSafely, flushInterval, flushInterval, unit);
+    }
+
+    /**
+     * Adds the delta to the counter's running sum.
+     *
+     * @return false if the counter could not be aggregated and should be sent as is
+     */
+    boolean count(final String aspect, final long delta, final String[] tags) {
+        return count(new MetricKey(MetricType.COUNTER, aspect, tags), delta);
+    }
+
+    boolean count(final MetricKey key, final long delta) {
+        final Count sum = context(counters, key, k -> new Count());
+        if (sum == null) {
+            return false;
+        }
+        sum.add(delta);
+        return true;
+    }
+
+    /**
+     * Replaces the gauge's value, a {@link Long} or a {@link Double}, with the given one.
+     *
+     * @return false if the gauge could not be aggregated and should be sent as is
+     */
+    boolean gauge(final String aspect, final Number value, final String[] tags) {
+        final MetricKey key = new MetricKey(MetricType.GAUGE, aspect, tags);
+        return value instanceof Long ? gauge(key, value.longValue()) : gauge(key, value.doubleValue());
+    }
+
+    boolean gauge(final MetricKey key, final long value) {
+        if (value == LastValue.EMPTY) {
+            return false;
+        }
+        final LastValue last = context(gauges, key, k -> new LastValue());
+        if (last == null) {
+            return false;
+        }
+        last.set(value, false);
+        return true;
+    }
+
+    boolean gauge(final MetricKey key, final double value) {
+        final LastValue last = context(gauges, key, k -> new LastValue());
+        if (last == null) {
+            return false;
+        }
+        last.set(Double.doubleToLongBits(value), true);
+        return true;
+    }
+
+    /**
+     * Adds the member to the set, unless it has been seen already in this interval.
+     *
+     * @return false if the set could not be aggregated and the member should be sent as is
+     */
+    boolean set(final String aspect, final String value, final String[] tags) {
+        return set(new MetricKey(MetricType.SET, aspect, tags), value);
+    }
+
+    boolean set(final MetricKey key, final String value) {
+        final Set<String> members = context(sets, key, k -> ConcurrentHashMap.newKeySet());
+        if (members == null) {
+            return false;
+        }
+        members.add(value);
+        return true;
+    }
+
+    /**
+     * Adds a histogram or timer sample to the line being packed for its aspect and tags.
+     *
+     * @return false if the sample could not be packed and should be sent as is
+     */
+    boolean sample(final MetricType type, final String aspect, final long value, final String[] tags) {
+        return sample(new MetricKey(type, aspect, tags), value);
+    }
+
+    boolean sample(final MetricType type, final String aspect, final double value, final String[] tags) {
+        return sample(new MetricKey(type, aspect, tags), value);
+    }
+
+    boolean sample(final MetricKey key, final long value) {
+        final Samples line = context(samples, key, this::newSamples);
+        if (line == null) {
+            return false;
+        }
+        emitFull(key, line.add(value));
+        return true;
+    }
+
+    boolean sample(final MetricKey key, final double value) {
+        final Samples line = context(samples, key, this::newSamples);
+        if (line == null) {
+            return false;
+        }
+        emitFull(key, line.add(value));
+        return true;
+    }
+
+    /**
+     * Emits everything aggregated so far.
+     */
+    synchronized void flush() {
+        final List<Runnable> previouslyRetired = retired;
+        retired = new ArrayList<>();
+        for (final Runnable drain : previouslyRetired) {
+            drain.run();
+        }
+
+        flush(counters, this::emitCount);
+        flush(gauges, this::emitGauge);
+        flush(sets, this::emitSet);
+        flush(samples, this::emitSamples);
+    }
+
+    /**
+     * Stops the periodic flush and emits whatever is left.
+     */
+    void close() {
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        flush();
+    }
+
+    private <V> V context(final ConcurrentHashMap<MetricKey, V> table, final MetricKey key,
+                          final Function<MetricKey, V> factory) {
+        V context = table.get(key);
+        if (context == null) {
+            if (counters.size() + gauges.size() + sets.size() + samples.size() >= MAX_CONTEXTS) {
+                return null;
+            }
+            final V created = factory.apply(key);
+            context = table.putIfAbsent(key.immutableCopy(), created);
+            if (context == null) {
+                context = created;
+            }
+        }
+        return context;
+    }
+
+    private <V> void flush(final ConcurrentHashMap<MetricKey, V> table, final Drain<V> drain) {
+        for (final Map.Entry<MetricKey, V> entry : table.entrySet()) {
+            final MetricKey key = entry.getKey();
+            final V context = entry.getValue();
+            if (!drain.emit(key, context) && table.remove(key, context)) {
+                retired.add(() -> drain.emit(key, context));
+            }
+        }
+    }
+
+    private boolean emitCount(final MetricKey key, final Count count) {
+        if (!count.untouch()) {
+            return false;
+        }
+        sink.count(key, count.drain());
+        return true;
+    }
+
+    private boolean emitGauge(final MetricKey key, final LastValue last) {
+        final long bits = last.take();
+        if (bits == LastValue.EMPTY) {
+            return false;
+        }
+        if (last.isDouble()) {
+            sink.gauge(key, Double.longBitsToDouble(bits));
+        } else {
+            sink.gauge(key, bits);
+        }
+        return true;
+    }
+
+    private boolean emitSet(final MetricKey key, final Set<String> members) {
+        boolean emitted = false;
+        for (final String member : members) {
+            if (members.remove(member)) {
+                sink.set(key, member);
+                emitted = true;
+            }
+        }
+        return emitted;
+    }
+
+    private boolean emitSamples(final MetricKey key, final Samples line) {
+        final String values = line.drain();
+        if (values == null) {
+            return false;
+        }
+        sink.samples(key, values);
+        return true;
+    }
+
+    private void emitFull(final MetricKey key, final String values) {
+        if (values != null) {
+            sink.samples(key, values);
+        }
+    }
+
+    private Samples newSamples(final MetricKey key) {
+        // aspect, ':' and '|' plus the type, then a separator before every tag and "|#" before the first
+        int length = lineOverhead + MessageEncoder.utf8Length(String.valueOf(key.getAspect())) + 2
+                + key.getType().getIndicator().length() + 1;
+        if (key.getTags() != null) {
+            for (final String tag : key.getTags()) {
+                if (tag != null) {
+                    length += MessageEncoder.utf8Length(tag) + 1;
+                }
+            }
+        }
+        return new Samples(maxLineLength - length);
+    }
+
+    /**
+     * A counter's running sum, flagged as touched by every update so that deltas cancelling each other out
+     * within an interval are still reported, as zero.
+     */
+    private static final class Count {
+        private final StripedLong sum = new StripedLong();
+        private final AtomicBoolean touched = new AtomicBoolean();
+
+        void add(final long delta) {
+            sum.add(delta);
+            // flagged after adding, so a flush that sees the flag also drains the delta; checked first to keep
+            // updates from contending on the flag's cache line
+            if (!touched.get()) {
+                touched.set(true);
+            }
+        }
+
+        /**
+         * Clears the flag, to be called before draining.
+         *
+         * @return whether there were updates since the flag was last cleared
+         */
+        boolean untouch() {
+            return touched.getAndSet(false);
+        }
+
+        long drain() {
+            return sum.drain();
+        }
+    }
+
+    /**
+     * A gauge's last value, kept unboxed: a long as is or a double as its bits, with a flag telling which.
+     */
+    private static final class LastValue {
+        /**
+         * Stands for no value since the previous flush. Doubles are stored with their NaNs collapsed into the
+         * canonical one, so this NaN never comes up; the one long equal to it is sent without aggregating.
+         */
+        static final long EMPTY = 0x7ff0_dead_beef_0001L;
+
+        private final AtomicLong bits = new AtomicLong(EMPTY);
+        private volatile boolean isDouble;
+
+        void set(final long bits, final boolean isDouble) {
+            // only written when it changes to keep updates from contending on it
+            if (this.isDouble != isDouble) {
+                this.isDouble = isDouble;
+            }
+            this.bits.set(bits);
+        }
+
+        /**
+         * @return the bits of the value set since the previous call, or {@link #EMPTY} if there was none
+         */
+        long take() {
+            return bits.getAndSet(EMPTY);
+        }
+
+        boolean isDouble() {
+            return isDouble;
+        }
+    }
+
+    /**
+     * The values of the line being packed for one aspect and tags. Rendered values are plain ASCII, so their
+     * length in chars is their length in bytes.
+     */
+    private static final class Samples {
+        private final int capacity;
+        private final StringBuilder values = new StringBuilder();
+
+        Samples(final int capacity) {
+            this.capacity = capacity;
+        }
+
+        /**
+         * @return the values packed so far if the new one didn't fit next to them, null otherwise
+         */
+        synchronized String add(final long value) {
+            final int start = separate();
+            values.append(value);
+            return split(start);
+        }
+
+        synchronized String add(final double value) {
+            final int start = separate();
+            MessageEncoder.appendValue(values, value);
+            return split(start);
+        }
+
+        synchronized String drain() {
+            if (values.length() == 0) {
+                return null;
+            }
+            final String drained = values.toString();
+            values.setLength(0);
+            return drained;
+        }
+
+        private int separate() {
+            final int start = values.length();
+            if (start > 0) {
+                values.append(':');
+            }
+            return start;
+        }
+
+        private String split(final int start) {
+            if (start == 0 || values.length() <= capacity) {
+                return null;
+            }
+            final String full = values.substring(0, start);
+            values.delete(0, start + 1);
+            return full;
+        }
+    }
+
+    private void flushSafely() {
+        try {
+            flush();
+        } catch (final Exception e) {
+            errorHandler.handle(e);
+        }
+    }
+}
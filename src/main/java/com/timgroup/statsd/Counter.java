@@ -0,0 +1,44 @@
+package com.timgroup.statsd;
+
+/**
+ * A counter bound to a fixed aspect and set of tags, obtained from {@link StatsDClient#counter}.
+ *
+ * <p>Implementations may render the constant parts of the metric once, so a handle that is kept and
+ * reused is cheaper than calling {@link StatsDClient#count} with the same aspect and tags each time.</p>
+ *
+ * <p>These methods are non-blocking and are guaranteed not to throw an exception.</p>
+ */
+public interface Counter {
+
+    /**
+     * Adjusts the counter by the given delta.
+     *
+     * @param delta
+     *     the amount to adjust the counter by
+     */
+    void count(long delta);
+
+    /**
+     * Adjusts the counter by the given delta.
+     *
+     * @param delta
+     *     the amount to adjust the counter by
+     * @param sampleRate
+     *     percentage of time metric to be sent
+     */
+    void count(long delta, double sampleRate);
+
+    /**
+     * Increments the counter by one.
+     */
+    default void increment() {
+        count(1);
+    }
+
+    /**
+     * Decrements the counter by one.
+     */
+    default void decrement() {
+        count(-1);
+    }
+}
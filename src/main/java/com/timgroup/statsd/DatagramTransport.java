@@ -0,0 +1,224 @@
+package com.timgroup.statsd;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.Callable;
+
+/**
+ * Sends every packet as a datagram, over UDP or to a Unix domain datagram socket.
+ *
+ * <p>A connected UDP transport connects its channel to the server and writes to it, which skips the security and
+ * address checks the JDK makes on every {@link DatagramChannel#send}, and lets ICMP port unreachable errors surface
+ * as {@link java.net.PortUnreachableException}s on later writes. The address is still looked up for every packet,
+ * and the channel is only connected again when it changes.</p>
+ *
+ * <p>Packets are 1400 bytes for UDP and 8 KiB for Unix domain sockets unless sized otherwise. Sized
+ * {@link #AUTO_PACKET_SIZE automatically}, UDP packets to an address of this host fill the MTU of its interface,
+ * 64 KiB on a typical loopback interface, and datagrams to a Unix domain socket take as much as the socket's send
+ * buffer does, up to 64 KiB. The server must then read datagrams that large, e.g. with the Datadog agent's
+ * {@code dogstatsd_buffer_size}.</p>
+ */
+final class DatagramTransport implements Transport {
+    /**
+     * Small enough for a UDP packet not to be fragmented on a typical network.
+     */
+    static final int UDP_PACKET_SIZE_BYTES = 1400;
+
+    /**
+     * The largest UDP payload over IPv4.
+     */
+    static final int MAX_UDP_PACKET_SIZE_BYTES = 65507;
+
+    static final int MAX_UNIX_PACKET_SIZE_BYTES = 65536;
+
+    /**
+     * Asks the factories to size packets after the path to the server.
+     */
+    static final int AUTO_PACKET_SIZE = -1;
+
+    /** IP and UDP headers. */
+    private static final int IPV4_OVERHEAD_BYTES = 28;
+    private static final int IPV6_OVERHEAD_BYTES = 48;
+    /** What Linux reserves of a Unix datagram socket's send buffer besides the datagram. */
+    private static final int UNIX_OVERHEAD_BYTES = 32;
+
+    private final DatagramChannel channel;
+    private final Callable<? extends SocketAddress> addressLookup;
+    private final int packetSize;
+    private final int maxPacketSize;
+    private final boolean connect;
+    /** The address the channel is connected to, if connecting. */
+    private SocketAddress connectedAddress;
+
+    private DatagramTransport(final DatagramChannel channel, final Callable<? extends SocketAddress> addressLookup,
+                              final int packetSize, final int maxPacketSize, final boolean connect) {
+        this.channel = channel;
+        this.addressLookup = addressLookup;
+        this.packetSize = packetSize;
+        this.maxPacketSize = maxPacketSize;
+        this.connect = connect;
+    }
+
+    /**
+     * Sends UDP datagrams to the address the lookup yields at the time of each send. The lookup is closed with the
+     * transport if it is {@link Closeable}.
+     *
+     * @param connect
+     *     whether to connect the channel to the address and write to it rather than send to it
+     * @param packetSize
+     *     the size of the packets in bytes, 0 for the default or {@link #AUTO_PACKET_SIZE} to size them after the
+     *     address the lookup yields now
+     */
+    static DatagramTransport udp(final Callable<? extends SocketAddress> addressLookup, final boolean connect,
+                                 final int packetSize) throws StatsDClientException {
+        if (packetSize > MAX_UDP_PACKET_SIZE_BYTES) {
+            throw new IllegalArgumentException("UDP packet size must be at most " + MAX_UDP_PACKET_SIZE_BYTES);
+        }
+        try {
+            final DatagramChannel channel = DatagramChannel.open();
+            final int size = packetSize == AUTO_PACKET_SIZE ? udpPacketSize(channel, addressLookup)
+                    : packetSize > 0 ? packetSize : UDP_PACKET_SIZE_BYTES;
+            return new DatagramTransport(channel, addressLookup, size, MAX_UDP_PACKET_SIZE_BYTES, connect);
+        } catch (final Exception e) {
+            throw new StatsDClientException("Failed to start StatsD client", e);
+        }
+    }
+
+    /**
+     * Sends datagrams to the Unix domain socket at the given path, see {@link UnixDatagrams}. jnr-unixsocket's
+     * datagram channels can't be connected, so these are always sent to the address.
+     *
+     * @param packetSize
+     *     the size of the packets in bytes, 0 for the default or {@link #AUTO_PACKET_SIZE} to size them after the
+     *     socket's send buffer
+     */
+    static DatagramTransport unixSocket(final String path, final int packetSize) throws StatsDClientException {
+        if (packetSize > MAX_UNIX_PACKET_SIZE_BYTES) {
+            throw new IllegalArgumentException("Unix socket packet size must be at most "
+                    + MAX_UNIX_PACKET_SIZE_BYTES);
+        }
+        final SocketAddress address = UnixDatagrams.address(path);
+        DatagramChannel channel = null;
+        try {
+            channel = UnixDatagrams.open();
+            final int size;
+            if (packetSize == AUTO_PACKET_SIZE) {
+                size = Math.max(UnixDatagrams.PACKET_SIZE_BYTES, Math.min(MAX_UNIX_PACKET_SIZE_BYTES,
+                        UnixDatagrams.sendBufferSize(channel) - UNIX_OVERHEAD_BYTES));
+            } else {
+                size = packetSize > 0 ? packetSize : UnixDatagrams.PACKET_SIZE_BYTES;
+            }
+            if (UnixDatagrams.sendBufferSize(channel) < size + UNIX_OVERHEAD_BYTES) {
+                // larger datagrams would fail to send
+                UnixDatagrams.setSendBufferSize(channel, size + UNIX_OVERHEAD_BYTES);
+            }
+            final int maxSize = Math.min(MAX_UNIX_PACKET_SIZE_BYTES,
+                    UnixDatagrams.sendBufferSize(channel) - UNIX_OVERHEAD_BYTES);
+            return new DatagramTransport(channel, () -> address, size, Math.max(size, maxSize), false);
+        } catch (final Exception e) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (final IOException ignored) {
+                    // the transport is failing to start anyway
+                }
+            }
+            throw new StatsDClientException("Failed to start StatsD client", e);
+        }
+    }
+
+    /**
+     * Fills the MTU of the interface of a local address, less the headers, and keeps to the default for remote
+     * addresses, whose path MTU is unknown.
+     */
+    private static int udpPacketSize(final DatagramChannel channel,
+                                     final Callable<? extends SocketAddress> addressLookup) {
+        try {
+            final InetAddress address = ((InetSocketAddress) addressLookup.call()).getAddress();
+            final NetworkInterface local = address != null ? NetworkInterface.getByInetAddress(address) : null;
+            if (local == null) {
+                return UDP_PACKET_SIZE_BYTES;
+            }
+            final int overhead = address instanceof Inet6Address ? IPV6_OVERHEAD_BYTES : IPV4_OVERHEAD_BYTES;
+            final int size = Math.min(local.getMTU() - overhead, Math.min(MAX_UDP_PACKET_SIZE_BYTES,
+                    channel.getOption(StandardSocketOptions.SO_SNDBUF)));
+            return Math.max(size, UDP_PACKET_SIZE_BYTES);
+        } catch (final Exception e) {
+            return UDP_PACKET_SIZE_BYTES;
+        }
+    }
+
+    @Override
+    public int packetSize() {
+        return packetSize;
+    }
+
+    /**
+     * Returns the largest UDP payload, or what the send buffer of a Unix domain socket takes up to 64 KiB. Over a
+     * network, UDP packets larger than the path MTU are fragmented, and get lost if any fragment is.
+     */
+    @Override
+    public int maxPacketSize() {
+        return maxPacketSize;
+    }
+
+    @Override
+    public void send(final ByteBuffer packet) throws IOException {
+        final SocketAddress address;
+        try {
+            address = addressLookup.call();
+        } catch (final IOException e) {
+            throw e;
+        } catch (final Exception e) {
+            throw new IOException("Could not look up the address of the StatsD server", e);
+        }
+        final int sizeOfPacket = packet.remaining();
+        final int sentBytes;
+        if (connect) {
+            if (!address.equals(connectedAddress)) {
+                reconnect(address);
+            }
+            sentBytes = channel.write(packet);
+        } else {
+            sentBytes = channel.send(packet, address);
+        }
+        if (sizeOfPacket != sentBytes) {
+            throw new IOException(
+                    String.format(
+                            "Could not send entirely stat %s to %s. Only sent %d bytes out of %d bytes",
+                            packet.toString(),
+                            address,
+                            sentBytes,
+                            sizeOfPacket));
+        }
+    }
+
+    private void reconnect(final SocketAddress address) throws IOException {
+        if (channel.isConnected()) {
+            channel.disconnect();
+        }
+        connectedAddress = null;
+        channel.connect(address);
+        connectedAddress = address;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            channel.close();
+        } finally {
+            // such as an AddressResolver, which would otherwise keep resolving for nobody
+            if (addressLookup instanceof Closeable) {
+                ((Closeable) addressLookup).close();
+            }
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.timgroup.statsd;
+
+/**
+ * Metric handles that simply forward to the corresponding {@link StatsDClient} method, used as the
+ * default for clients that don't pre-render their handles.
+ */
+final class DelegatingMetrics {
+
+    private DelegatingMetrics() {}
+
+    static Counter counter(final StatsDClient client, final String aspect, final String[] tags) {
+        final String[] boundTags = copy(tags);
+        return new Counter() {
+            @Override
+            public void count(long delta) {
+                client.count(aspect, delta, boundTags);
+            }
+
+            @Override
+            public void count(long delta, double sampleRate) {
+                client.count(aspect, delta, sampleRate, boundTags);
+            }
+        };
+    }
+
+    static Gauge gauge(final StatsDClient client, final String aspect, final String[] tags) {
+        final String[] boundTags = copy(tags);
+        return new Gauge() {
+            @Override
+            public void record(double value) {
+                client.recordGaugeValue(aspect, value, boundTags);
+            }
+
+            @Override
+            public void record(double value, double sampleRate) {
+                client.recordGaugeValue(aspect, value, sampleRate, boundTags);
+            }
+
+            @Override
+            public void record(long value) {
+                client.recordGaugeValue(aspect, value, boundTags);
+            }
+
+            @Override
+            public void record(long value, double sampleRate) {
+                client.recordGaugeValue(aspect, value, sampleRate, boundTags);
+            }
+        };
+    }
+
+    static Timer timer(final StatsDClient client, final String aspect, final String[] tags) {
+        final String[] boundTags = copy(tags);
+        return new Timer() {
+            @Override
+            public void record(long timeInMs) {
+                client.recordExecutionTime(aspect, timeInMs, boundTags);
+            }
+
+            @Override
+            public void record(long timeInMs, double sampleRate) {
+                client.recordExecutionTime(aspect, timeInMs, sampleRate, boundTags);
+            }
+        };
+    }
+
+    static Histogram histogram(final StatsDClient client, final String aspect, final String[] tags) {
+        final String[] boundTags = copy(tags);
+        return new Histogram() {
+            @Override
+            public void record(double value) {
+                client.recordHistogramValue(aspect, value, boundTags);
+            }
+
+            @Override
+            public void record(double value, double sampleRate) {
+                client.recordHistogramValue(aspect, value, sampleRate, boundTags);
+            }
+
+            @Override
+            public void record(long value) {
+                client.recordHistogramValue(aspect, value, boundTags);
+            }
+
+            @Override
+            public void record(long value, double sampleRate) {
+                client.recordHistogramValue(aspect, value, sampleRate, boundTags);
+            }
+        };
+    }
+
+    static SetMetric set(final StatsDClient client, final String aspect, final String[] tags) {
+        final String[] boundTags = copy(tags);
+        return value -> client.recordSetValue(aspect, value, boundTags);
+    }
+
+    private static String[] copy(final String[] tags) {
+        return tags == null ? null : tags.clone();
+    }
+}
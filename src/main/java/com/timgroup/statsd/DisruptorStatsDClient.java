@@ -2,52 +2,108 @@ package com.timgroup.statsd;
 
 import com.lmax.disruptor.*;
 import com.lmax.disruptor.dsl.Disruptor;
+import com.lmax.disruptor.dsl.ProducerType;
 
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
-import java.nio.channels.DatagramChannel;
-import java.nio.charset.Charset;
-import java.nio.charset.StandardCharsets;
-import java.util.Arrays;
-import java.util.concurrent.Executors;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
 /**
  * Client implementation that queues up metric messages in a LMAX disruptor.
  */
 public class DisruptorStatsDClient extends StringMessageStatsDClient {
 
-    private static final Charset MESSAGE_CHARSET = StandardCharsets.UTF_8;
-    private static final int PACKET_SIZE_BYTES = 1400;
     private static final StatsDClientErrorHandler NO_OP_HANDLER = e -> {};
     private static final EventFactory<DisruptorEvent> FACTORY = DisruptorEvent::new;
     private static final EventTranslatorOneArg<DisruptorEvent, String> TRANSLATOR =
             (event, sequence, msg) -> event.setValue(msg);
+    private static final int DEFAULT_RING_SIZE = 16384;
 
     private final String prefix;
-    private final DatagramChannel clientChannel;
-    private final AtomicReference<InetSocketAddress> address;
     private final StatsDClientErrorHandler errorHandler;
     private final String constantTagsRendered;
+    private final boolean formatOnConsumer;
+    private final OverflowPolicy overflowPolicy;
+    private final DropCounters drops = new DropCounters();
+    private final Telemetry telemetry = new Telemetry(drops);
+    /** How long a packet that isn't full waits for more messages, or 0 to send it at the end of every batch. */
+    private final long lingerNanos;
+    private final boolean ownHandler;
+    private final int ringSize;
+    /** Null for the default, which depends on the transport and linger time. */
+    private final Supplier<? extends WaitStrategy> waitStrategy;
+    private final ProducerType producerType;
+    private final ThreadFactory threadFactory;
 
-    private final ThreadFactory threadFactory = r -> {
-        Thread thread = new Thread(r);
-        thread.setName("statsd-disruptor-" + thread.getName());
-        thread.setDaemon(true);
-        return thread;
-    };
-
-    private final Disruptor<DisruptorEvent> disruptor = new Disruptor<>(FACTORY, 16384, threadFactory);
+    private final Shard[] shards;
 
     public DisruptorStatsDClient(String prefix, String hostname, int port, String[] constantTags,
                                  StatsDClientErrorHandler errorHandler, final DisruptorEventHandler handler)
             throws StatsDClientException {
 
+        this(prefix, hostname, port, constantTags, errorHandler, handler, false, OverflowPolicy.dropNewest());
+    }
+
+    /**
+     * @param formatOnConsumer
+     *     if true, metrics are published to the ring buffer as their type, value, sample rate, aspect and tags
+     *     and only rendered on the consumer thread, which keeps formatting off the calling threads and makes
+     *     publishing allocation-free. The tags arrays passed to this client must then not be modified after
+     *     the call returns. Events and service checks are always rendered by the caller.
+     */
+    public DisruptorStatsDClient(String prefix, String hostname, int port, String[] constantTags,
+                                 StatsDClientErrorHandler errorHandler, boolean formatOnConsumer)
+            throws StatsDClientException {
+
+        this(prefix, hostname, port, constantTags, errorHandler, null, formatOnConsumer, OverflowPolicy.dropNewest());
+    }
+
+    /**
+     * @param formatOnConsumer
+     *     see {@link #DisruptorStatsDClient(String, String, int, String[], StatsDClientErrorHandler, boolean)}
+     * @param overflowPolicy
+     *     what to do with messages when the ring buffer is full
+     */
+    public DisruptorStatsDClient(String prefix, String hostname, int port, String[] constantTags,
+                                 StatsDClientErrorHandler errorHandler, boolean formatOnConsumer,
+                                 OverflowPolicy overflowPolicy) throws StatsDClientException {
+
+        this(prefix, hostname, port, constantTags, errorHandler, null, formatOnConsumer, overflowPolicy);
+    }
+
+    DisruptorStatsDClient(String prefix, String hostname, int port, String[] constantTags,
+                          StatsDClientErrorHandler errorHandler, final DisruptorEventHandler handler,
+                          boolean formatOnConsumer, OverflowPolicy overflowPolicy) throws StatsDClientException {
+
+        this(prefix, new Transport[] { udp(hostname, port, AddressResolver.DEFAULT_TTL_NANOS, false, 0) },
+                constantTags, errorHandler, handler, formatOnConsumer, overflowPolicy, 0, DEFAULT_RING_SIZE, null,
+                ProducerType.MULTI, null);
+    }
+
+    /**
+     * @param transports
+     *     one per shard, see {@link Builder#withShards}; a given handler only works with a single one
+     * @param waitStrategy
+     *     yields a wait strategy per shard, or null for the default
+     * @param threadFactory
+     *     creates the consumer threads, or null for daemon threads named {@code statsd-disruptor-*}
+     */
+    private DisruptorStatsDClient(String prefix, Transport[] transports, String[] constantTags,
+                                  StatsDClientErrorHandler errorHandler, final DisruptorEventHandler handler,
+                                  boolean formatOnConsumer, OverflowPolicy overflowPolicy, long lingerNanos,
+                                  int ringSize, Supplier<? extends WaitStrategy> waitStrategy,
+                                  ProducerType producerType, ThreadFactory threadFactory)
+            throws StatsDClientException {
+
         if (prefix != null && prefix.length() > 0) {
             this.prefix = String.format("%s.", prefix);
         } else {
@@ -55,6 +111,11 @@ public class DisruptorStatsDClient extends StringMessageStatsDClient {
         }
 
         this.errorHandler = errorHandler;
+        this.formatOnConsumer = formatOnConsumer;
+        if (overflowPolicy == null) {
+            throw new IllegalArgumentException("overflow policy must not be null");
+        }
+        this.overflowPolicy = overflowPolicy;
 
         if (constantTags != null && constantTags.length > 0) {
             this.constantTagsRendered = tagString(constantTags, null);
@@ -62,18 +123,43 @@ public class DisruptorStatsDClient extends StringMessageStatsDClient {
             this.constantTagsRendered = null;
         }
 
-        try {
-            this.clientChannel = DatagramChannel.open();
-            this.address = scheduledResolveAddress(hostname, port);
-        } catch (Exception e) {
-            throw new StatsDClientException("Failed to start StatsD client", e);
+        this.lingerNanos = lingerNanos;
+        this.ownHandler = handler == null;
+        this.ringSize = ringSize;
+        this.waitStrategy = waitStrategy;
+        this.producerType = producerType;
+        this.threadFactory = (threadFactory != null) ? threadFactory : r -> {
+            Thread thread = new Thread(r);
+            thread.setName("statsd-disruptor-" + thread.getName());
+            thread.setDaemon(true);
+            return thread;
+        };
+        this.shards = new Shard[transports.length];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard(transports[i], handler);
         }
+        for (final Shard shard : shards) {
+            shard.disruptor.start();
+        }
+    }
 
-        disruptor.setDefaultExceptionHandler(new DisruptorExceptionHandler(this.errorHandler));
-
-        disruptor.handleEventsWith(new DisruptorEventHandler[] { (handler != null) ? handler : new Handler() });
+    private DisruptorStatsDClient(Builder builder) throws StatsDClientException {
+        this(builder.prefix, builder.transports(), builder.constantTags, builder.errorHandler, null,
+                builder.formatOnConsumer, builder.overflowPolicy, builder.lingerNanos, builder.ringSize,
+                builder.waitStrategy, builder.singleProducer ? ProducerType.SINGLE : ProducerType.MULTI,
+                builder.threadFactory);
+        if (builder.telemetryInterval > 0) {
+            telemetry.start(this::send, constantTagsRendered,
+                    builder.clientId != null ? builder.clientId : Telemetry.defaultClientId(),
+                    this::queued, null, builder.telemetryInterval, builder.telemetryUnit, errorHandler);
+        }
+    }
 
-        disruptor.start();
+    /**
+     * Returns a builder for clients that need options beyond those the constructors offer.
+     */
+    public static Builder builder() {
+        return new Builder();
     }
 
     public DisruptorStatsDClient(String prefix, String hostname, int port) throws StatsDClientException {
@@ -91,49 +177,47 @@ public class DisruptorStatsDClient extends StringMessageStatsDClient {
     }
 
     /**
-     * Returns a {@link AtomicReference} containing a {@link InetSocketAddress} object that will be updated
-     * periodically by a task that resolves the given hostname/port. The task is scheduled to run every minute.
+     * Returns a transport sending UDP datagrams to the given host name and port, resolved again in the background
+     * whenever the time to live has passed.
      */
-    @SuppressWarnings("FutureReturnValueIgnored")
-    private AtomicReference<InetSocketAddress> scheduledResolveAddress(String hostname, int port)
-            throws UnknownHostException {
-
-        // Perform an initial resolution and schedule the task to run after an initial delay
-        AtomicReference<InetSocketAddress> ref = new AtomicReference<>(resolveAddress(hostname, port));
-
-        Executors.newScheduledThreadPool(1, r -> {
-            Thread thread = new Thread(r);
-            thread.setName("statsd-dns-resolver");
-            thread.setDaemon(true);
-            return thread;
-        }).scheduleAtFixedRate(() -> {
-            try {
-                ref.lazySet(resolveAddress(hostname, port));
-            } catch (UnknownHostException ignored) {
-                // subsequent failures to resolve the hostname should just leave the existing address
-            }
-        }, 1, 1, TimeUnit.MINUTES);
-
-        return ref;
+    private static Transport udp(String hostname, int port, long ttlNanos, boolean connect, int packetSize)
+            throws StatsDClientException {
+        final AddressResolver address;
+        try {
+            address = AddressResolver.start(hostname, port, ttlNanos);
+        } catch (UnknownHostException e) {
+            throw new StatsDClientException("Failed to start StatsD client", e);
+        }
+        return DatagramTransport.udp(address, connect, packetSize);
     }
 
     @Override
     public void close() {
-        try {
-            disruptor.shutdown(30, TimeUnit.SECONDS);
-        } catch (Exception e) {
-            errorHandler.handle(e);
-        } finally {
-            if (clientChannel != null) {
-                try {
-                    clientChannel.close();
-                } catch (IOException e) {
-                    errorHandler.handle(e);
-                }
-            }
+        telemetry.close();
+        for (final Shard shard : shards) {
+            shard.close();
         }
     }
 
+    /**
+     * Returns the number of messages waiting in the ring buffers.
+     */
+    long queued() {
+        long queued = 0;
+        for (final Shard shard : shards) {
+            queued += shard.ringBuffer.getBufferSize() - shard.ringBuffer.remainingCapacity();
+        }
+        return queued;
+    }
+
+    /**
+     * Returns the shard of the calling thread, so that a thread's messages stay in order.
+     */
+    private Shard shard() {
+        final Shard[] shards = this.shards;
+        return shards.length == 1 ? shards[0] : shards[(int) (Thread.currentThread().getId() % shards.length)];
+    }
+
     @Override
     public String getConstantTagsRendered() {
         return constantTagsRendered;
@@ -144,23 +228,249 @@ public class DisruptorStatsDClient extends StringMessageStatsDClient {
         return prefix;
     }
 
+    /**
+     * Returns the number of messages dropped so far because the ring buffer was full, by kind of message:
+     * {@code counter}, {@code gauge}, {@code timer}, {@code histogram}, {@code set}, {@code event},
+     * {@code service_check} and {@code other}.
+     */
+    public Map<String, Long> getDroppedMessages() {
+        return drops.snapshot();
+    }
+
     @Override
     protected void send(String message) {
-        if (!disruptor.getRingBuffer().tryPublishEvent(TRANSLATOR, message)) {
-            errorHandler.handle(InsufficientCapacityException.INSTANCE);
+        final Shard shard = shard();
+        final RingBuffer<DisruptorEvent> ringBuffer = shard.ringBuffer;
+        if (overflowPolicy.samplesDown() && !overflowPolicy.admit(fill(ringBuffer))) {
+            drops.record(message, DropCounters.Reason.SAMPLE_DOWN);
+            return;
+        }
+        long start = 0;
+        int attempt = 0;
+        for (; !ringBuffer.tryPublishEvent(TRANSLATOR, message); attempt++) {
+            if (attempt == 0) {
+                start = System.nanoTime();
+            }
+            if (!overflowPolicy.awaitRetry(attempt, start, shard.evictionRequests)) {
+                drops.record(message, DropCounters.Reason.QUEUE_FULL);
+                return;
+            }
+        }
+        overflowPolicy.settled(attempt, shard.evictionRequests);
+        telemetry.messagesQueued.add(1);
+    }
+
+    @Override
+    void sendMetric(MetricType type, String aspect, long value, double sampleRate, String[] tags) {
+        if (!formatOnConsumer) {
+            super.sendMetric(type, aspect, value, sampleRate, tags);
+            return;
+        }
+        publishMetric(type, aspect, tags, null, sampleRate, value);
+    }
+
+    @Override
+    void sendMetric(MetricType type, String aspect, double value, double sampleRate, String[] tags) {
+        if (!formatOnConsumer) {
+            super.sendMetric(type, aspect, value, sampleRate, tags);
+            return;
+        }
+        publishMetric(type, aspect, tags, null, sampleRate, value);
+    }
+
+    @Override
+    void sendMetric(MetricType type, String aspect, String value, double sampleRate, String[] tags) {
+        if (!formatOnConsumer) {
+            super.sendMetric(type, aspect, value, sampleRate, tags);
+            return;
+        }
+        publishMetric(type, aspect, tags, null, sampleRate, value);
+    }
+
+    @Override
+    void sendMetric(MetricTemplate template, long value, double sampleRate) {
+        if (!formatOnConsumer) {
+            super.sendMetric(template, value, sampleRate);
+            return;
+        }
+        publishMetric(template.getType(), null, null, template, sampleRate, value);
+    }
+
+    @Override
+    void sendMetric(MetricTemplate template, double value, double sampleRate) {
+        if (!formatOnConsumer) {
+            super.sendMetric(template, value, sampleRate);
+            return;
+        }
+        publishMetric(template.getType(), null, null, template, sampleRate, value);
+    }
+
+    @Override
+    void sendMetric(MetricTemplate template, String value, double sampleRate) {
+        if (!formatOnConsumer) {
+            super.sendMetric(template, value, sampleRate);
+            return;
+        }
+        publishMetric(template.getType(), null, null, template, sampleRate, value);
+    }
+
+    /**
+     * Publishes the parts of a metric for the consumer to render, unless the ring buffer has no room for it. The
+     * typed overloads only differ in how they set the value, and keep it unboxed.
+     */
+    private void publishMetric(MetricType type, String aspect, String[] tags, MetricTemplate template,
+                               double sampleRate, long value) {
+        final Shard shard = shard();
+        final long sequence = claim(shard, type);
+        if (sequence >= 0) {
+            shard.ringBuffer.get(sequence).setMetric(type, aspect, tags, template, sampleRate).setMetricValue(value);
+            shard.ringBuffer.publish(sequence);
+        }
+    }
+
+    private void publishMetric(MetricType type, String aspect, String[] tags, MetricTemplate template,
+                               double sampleRate, double value) {
+        final Shard shard = shard();
+        final long sequence = claim(shard, type);
+        if (sequence >= 0) {
+            shard.ringBuffer.get(sequence).setMetric(type, aspect, tags, template, sampleRate).setMetricValue(value);
+            shard.ringBuffer.publish(sequence);
         }
     }
 
+    private void publishMetric(MetricType type, String aspect, String[] tags, MetricTemplate template,
+                               double sampleRate, String value) {
+        final Shard shard = shard();
+        final long sequence = claim(shard, type);
+        if (sequence >= 0) {
+            shard.ringBuffer.get(sequence).setMetric(type, aspect, tags, template, sampleRate).setMetricValue(value);
+            shard.ringBuffer.publish(sequence);
+        }
+    }
+
+    /**
+     * Claims the next slot without allocating, or returns -1 (after counting the drop) when the overflow
+     * policy gives up on the ring buffer being full. A claimed slot must always be published.
+     */
+    private long claim(Shard shard, MetricType type) {
+        final RingBuffer<DisruptorEvent> ringBuffer = shard.ringBuffer;
+        if (overflowPolicy.samplesDown() && !overflowPolicy.admit(fill(ringBuffer))) {
+            drops.record(type, DropCounters.Reason.SAMPLE_DOWN);
+            return -1;
+        }
+        long start = 0;
+        for (int attempt = 0; ; attempt++) {
+            try {
+                final long sequence = ringBuffer.tryNext();
+                overflowPolicy.settled(attempt, shard.evictionRequests);
+                telemetry.messagesQueued.add(1);
+                return sequence;
+            } catch (InsufficientCapacityException e) {
+                if (attempt == 0) {
+                    start = System.nanoTime();
+                }
+                if (!overflowPolicy.awaitRetry(attempt, start, shard.evictionRequests)) {
+                    drops.record(type, DropCounters.Reason.QUEUE_FULL);
+                    return -1;
+                }
+            }
+        }
+    }
+
+    private static double fill(RingBuffer<DisruptorEvent> ringBuffer) {
+        return 1 - ringBuffer.remainingCapacity() / (double) ringBuffer.getBufferSize();
+    }
+
+    /**
+     * A ring buffer slot, holding either a message rendered by the producer or the parts of a metric to be
+     * rendered by the consumer.
+     */
     public static class DisruptorEvent {
         private String value;
 
+        private MetricType type;
+        private String aspect;
+        private String[] tags;
+        private MetricTemplate template;
+        private double sampleRate;
+        private boolean isDouble;
+        private boolean isString;
+        private long longValue;
+        private double doubleValue;
+        private String stringValue;
+
         void setValue(String value) {
             this.value = value;
+            this.type = null;
+        }
+
+        DisruptorEvent setMetric(MetricType type, String aspect, String[] tags, MetricTemplate template,
+                                 double sampleRate) {
+            this.value = null;
+            this.type = type;
+            this.aspect = aspect;
+            this.tags = tags;
+            this.template = template;
+            this.sampleRate = sampleRate;
+            return this;
+        }
+
+        void setMetricValue(long value) {
+            this.isDouble = false;
+            this.isString = false;
+            this.longValue = value;
+        }
+
+        void setMetricValue(double value) {
+            this.isDouble = true;
+            this.isString = false;
+            this.doubleValue = value;
+        }
+
+        void setMetricValue(String value) {
+            this.isDouble = false;
+            this.isString = true;
+            this.stringValue = value;
+        }
+
+        boolean isMetric() {
+            return type != null;
+        }
+
+        /**
+         * Renders a metric slot into the calling thread's builder.
+         */
+        StringBuilder render(String prefix, String constantTags) {
+            if (template != null) {
+                if (isString) {
+                    return template.render(stringValue, sampleRate);
+                }
+                return isDouble ? template.render(doubleValue, sampleRate) : template.render(longValue, sampleRate);
+            }
+            final StringBuilder sb = MessageEncoder.builder();
+            if (isString) {
+                return MessageEncoder.appendMetric(sb, prefix, aspect, stringValue, type, sampleRate, tags, constantTags);
+            }
+            return isDouble
+                    ? MessageEncoder.appendMetric(sb, prefix, aspect, doubleValue, type, sampleRate, tags, constantTags)
+                    : MessageEncoder.appendMetric(sb, prefix, aspect, longValue, type, sampleRate, tags, constantTags);
+        }
+
+        /**
+         * Drops the references held by the slot so they don't outlive the message in the ring buffer.
+         */
+        void clear() {
+            value = null;
+            type = null;
+            aspect = null;
+            tags = null;
+            template = null;
+            stringValue = null;
         }
 
         @Override
         public String toString() {
-            return "Event: " + value;
+            return "Event: " + (isMetric() ? render("", null).toString() : value);
         }
     }
 
@@ -169,45 +479,603 @@ public class DisruptorStatsDClient extends StringMessageStatsDClient {
      */
     interface DisruptorEventHandler extends EventHandler<DisruptorEvent> {}
 
-    protected class Handler implements DisruptorEventHandler {
-        private final ByteBuffer sendBuffer = ByteBuffer.allocate(PACKET_SIZE_BYTES);
+    /**
+     * A ring buffer with a consumer thread and a transport of its own. Every producer thread publishes to one shard,
+     * see {@link #shard()}.
+     */
+    private final class Shard {
+        /** Used by the consumer thread only. */
+        private final Transport transport;
+        private final Disruptor<DisruptorEvent> disruptor;
+        private final RingBuffer<DisruptorEvent> ringBuffer;
+        private final AtomicLong evictionRequests = new AtomicLong();
+        /** Counted down once the {@link Handler}, if used, has started and has sent its last packet. */
+        private final CountDownLatch handlerStarted = new CountDownLatch(1);
+        private final CountDownLatch handlerStopped = new CountDownLatch(1);
+
+        Shard(Transport transport, DisruptorEventHandler handler) {
+            this.transport = transport;
+            this.disruptor = new Disruptor<>(FACTORY, ringSize, threadFactory, producerType,
+                    (waitStrategy != null) ? waitStrategy.get() : defaultWaitStrategy(transport));
+            disruptor.setDefaultExceptionHandler(new DisruptorExceptionHandler(errorHandler));
+            disruptor.handleEventsWith(new DisruptorEventHandler[] { (handler != null) ? handler : new Handler(this) });
+            this.ringBuffer = disruptor.getRingBuffer();
+        }
+
+        private WaitStrategy defaultWaitStrategy(Transport transport) {
+            if (!transport.isBuffered() && lingerNanos == 0) {
+                return new BlockingWaitStrategy();
+            }
+            // wake the consumer up while idle, to send what the transport kept back and lingering packets once
+            // they are due, the latter up to a quarter of the linger time late
+            long timeoutNanos = transport.isBuffered() ? TimeUnit.MILLISECONDS.toNanos(10) : Long.MAX_VALUE;
+            if (lingerNanos > 0) {
+                timeoutNanos = Math.min(timeoutNanos, Math.max(lingerNanos / 4, 1));
+            }
+            return new TimeoutBlockingWaitStrategy(timeoutNanos, TimeUnit.NANOSECONDS);
+        }
+
+        void close() {
+            try {
+                if (ownHandler) {
+                    // the shutdown skips a handler whose thread hasn't started yet, which then never stops
+                    handlerStarted.await(1, TimeUnit.SECONDS);
+                }
+                disruptor.shutdown(30, TimeUnit.SECONDS);
+                if (ownHandler) {
+                    // the handler sends a lingering packet as it stops, after the shutdown returns
+                    handlerStopped.await(1, TimeUnit.SECONDS);
+                }
+            } catch (Exception e) {
+                errorHandler.handle(e);
+            } finally {
+                try {
+                    transport.close();
+                } catch (IOException e) {
+                    errorHandler.handle(e);
+                }
+            }
+        }
+    }
+
+    protected class Handler implements DisruptorEventHandler, TimeoutHandler, LifecycleAware {
+        private final Shard shard;
+        private final ByteBuffer sendBuffer;
+        /** For messages too large for the send buffer, allocated once one comes along. */
+        private ByteBuffer oversizeBuffer;
+        /** When the packet being filled is due to be sent, if lingering. */
+        private long sendDeadline;
+
+        private Handler(Shard shard) {
+            this.shard = shard;
+            this.sendBuffer = ByteBuffer.allocateDirect(shard.transport.packetSize());
+        }
 
         @Override
         public void onEvent(DisruptorEvent event, long sequence, boolean batchEnd) throws Exception {
-            String message = event.value;
-            byte[] data = message.getBytes(MESSAGE_CHARSET);
-            if (sendBuffer.remaining() < (data.length + 1)) {
+            if (OverflowPolicy.takeEviction(shard.evictionRequests)) {
+                // a producer asked for the oldest message to be dropped to make room for its own
+                if (event.isMetric()) {
+                    drops.record(event.type, DropCounters.Reason.EVICTED);
+                } else {
+                    drops.record(event.value, DropCounters.Reason.EVICTED);
+                }
+                event.clear();
+                if (batchEnd) {
+                    flushIfDue();
+                }
+                return;
+            }
+            // metrics are rendered here when formatting on the consumer; either way the characters are encoded
+            // straight into the send buffer rather than through an intermediate byte[]
+            final CharSequence message = event.isMetric() ? event.render(prefix, constantTagsRendered) : event.value;
+            event.clear();
+            append(message);
+
+            if (0 == sendBuffer.remaining()) {
+                flush();
+            } else if (batchEnd) {
+                flushIfDue();
+            }
+        }
+
+        private void append(CharSequence message) throws Exception {
+            final int length = encodedLength(message);
+            if (length > sendBuffer.capacity()) {
+                sendOversized(message, length);
+                return;
+            }
+            if (sendBuffer.position() > 0 && sendBuffer.remaining() < (length + 1)) {
                 flush();
             }
             if (sendBuffer.position() > 0) {
                 sendBuffer.put((byte) '\n');
+            } else if (lingerNanos > 0) {
+                sendDeadline = System.nanoTime() + lingerNanos;
             }
-            sendBuffer.put(
-                    data.length > sendBuffer.remaining() ? Arrays.copyOfRange(data, 0, sendBuffer.remaining()) : data);
+            encode(message, sendBuffer);
+        }
 
-            if (batchEnd || 0 == sendBuffer.remaining()) {
+        /**
+         * Sends a message too large for a packet in a larger packet of its own, so it neither gets cut short nor
+         * holds up the packet being filled, or drops it if it is too large even for that.
+         */
+        private void sendOversized(CharSequence message, int length) throws Exception {
+            final int maxPacketSize = shard.transport.maxPacketSize();
+            if (length > maxPacketSize) {
+                drops.record(message, DropCounters.Reason.TOO_LARGE);
+                return;
+            }
+            if (oversizeBuffer == null || oversizeBuffer.capacity() < length) {
+                oversizeBuffer = ByteBuffer.allocateDirect(Math.min(maxPacketSize, Integer.highestOneBit(length) << 1));
+            }
+            encode(message, oversizeBuffer);
+            telemetry.packetsOversized.add(1);
+            telemetry.send(shard.transport, oversizeBuffer);
+        }
+
+        @Override
+        public void onTimeout(long sequence) throws Exception {
+            shard.transport.flush();
+            flushIfDue();
+        }
+
+        @Override
+        public void onStart() {
+            shard.handlerStarted.countDown();
+        }
+
+        @Override
+        public void onShutdown() {
+            try {
+                if (sendBuffer.position() > 0) {
+                    flush();
+                }
+            } catch (Exception e) {
+                errorHandler.handle(e);
+            } finally {
+                shard.handlerStopped.countDown();
+            }
+        }
+
+        private void flushIfDue() throws Exception {
+            if (sendBuffer.position() > 0 && (lingerNanos == 0 || System.nanoTime() - sendDeadline >= 0)) {
                 flush();
             }
         }
 
         private void flush() throws Exception {
-            InetSocketAddress inetSocketAddress = address.get();
-
-            int sizeOfBuffer = sendBuffer.position();
-            sendBuffer.flip();
-            int sentBytes = clientChannel.send(sendBuffer, inetSocketAddress);
-            sendBuffer.clear();
-
-            if (sizeOfBuffer != sentBytes) {
-                errorHandler.handle(new IOException(
-                        String.format(
-                                "Could not send entirely stat %s to host %s:%d. Only sent %d bytes out of %d bytes",
-                                sendBuffer.toString(),
-                                inetSocketAddress.getHostName(),
-                                inetSocketAddress.getPort(),
-                                sentBytes,
-                                sizeOfBuffer)));
+            telemetry.send(shard.transport, sendBuffer);
+        }
+    }
+
+    /**
+     * Builds a {@link DisruptorStatsDClient}. Where to send metrics must be given: a host name and port or a Unix
+     * socket for datagrams, a TCP address or Unix stream socket, or a {@link Transport}; everything else is
+     * optional.
+     */
+    public static class Builder {
+        private String prefix;
+        private String hostname;
+        private int port;
+        private String unixSocketPath;
+        private boolean connectedSocket;
+        private int maxPacketSize;
+        private boolean autoPacketSize;
+        private long addressTtlNanos = AddressResolver.DEFAULT_TTL_NANOS;
+        private String tcpHostname;
+        private int tcpPort;
+        private String unixStreamSocketPath;
+        private int streamBufferSize = StreamTransport.DEFAULT_BUFFER_SIZE;
+        private Transport transport;
+        private String[] constantTags;
+        private StatsDClientErrorHandler errorHandler = NO_OP_HANDLER;
+        private boolean formatOnConsumer;
+        private long lingerNanos;
+        private int shards = 1;
+        private int ringSize = DEFAULT_RING_SIZE;
+        private Supplier<? extends WaitStrategy> waitStrategy;
+        private boolean singleProducer;
+        private ThreadFactory threadFactory;
+        private OverflowPolicy overflowPolicy = OverflowPolicy.dropNewest();
+        private long telemetryInterval;
+        private TimeUnit telemetryUnit;
+        private String clientId;
+
+        private Builder() {}
+
+        /**
+         * @param prefix
+         *     the prefix to apply to keys sent via this client
+         */
+        public Builder withPrefix(String prefix) {
+            this.prefix = prefix;
+            return this;
+        }
+
+        /**
+         * @param hostname
+         *     the host name of the targeted StatsD server, resolved again every minute in the background (see
+         *     {@link #withAddressTtl})
+         * @param port
+         *     the port of the targeted StatsD server
+         */
+        public Builder withAddress(String hostname, int port) {
+            this.hostname = hostname;
+            this.port = port;
+            return this;
+        }
+
+        /**
+         * @param ttl
+         *     how long an address resolved from the host name given to {@link #withAddress} is used before the
+         *     host name is resolved again, in the background; Default: 1 minute
+         * @param unit
+         *     the unit of the time to live
+         */
+        public Builder withAddressTtl(long ttl, TimeUnit unit) {
+            if (ttl <= 0) {
+                throw new IllegalArgumentException("address time to live must be positive");
+            }
+            this.addressTtlNanos = unit.toNanos(ttl);
+            return this;
+        }
+
+        /**
+         * Sends datagrams to a Unix domain socket instead of UDP, in packets of up to 8 KiB rather than 1400 bytes.
+         * While the socket's buffer is full sends block, up to a second, so the ring buffer fills up and the
+         * {@link OverflowPolicy} applies instead of packets getting lost. Takes precedence over
+         * {@link #withAddress}.
+         *
+         * @param path
+         *     the path of the socket the StatsD server listens on, e.g. {@code /var/run/datadog/dsd.socket}
+         */
+        public Builder withUnixSocket(String path) {
+            this.unixSocketPath = path;
+            return this;
+        }
+
+        /**
+         * Connects the UDP socket to the StatsD server and writes packets to it rather than sending each one to
+         * the address. This is cheaper per packet, and ICMP port unreachable errors from the server's host are
+         * passed to the error handler. The address is still resolved every minute and the socket connected
+         * again when it changes. Doesn't apply to Unix domain sockets; Default: false
+         */
+        public Builder withConnectedSocket(boolean connectedSocket) {
+            this.connectedSocket = connectedSocket;
+            return this;
+        }
+
+        /**
+         * Packs metrics into datagrams of up to the given size instead of 1400 bytes for UDP and 8 KiB for Unix
+         * domain sockets. Larger packets mean fewer system calls and packets per second, and fit larger messages,
+         * but the StatsD server must read datagrams that large and, over a network, UDP packets larger than the
+         * path MTU are fragmented. Takes precedence over {@link #withAutoPacketSize}; doesn't apply to stream
+         * sockets or a given {@link Transport}.
+         *
+         * @param bytes
+         *     the maximum size of a datagram, at most 65507 for UDP and 65536 for Unix domain sockets
+         */
+        public Builder withMaxPacketSize(int bytes) {
+            if (bytes <= 0) {
+                throw new IllegalArgumentException("max packet size must be positive");
+            }
+            this.maxPacketSize = bytes;
+            return this;
+        }
+
+        /**
+         * Sizes datagrams after the path to the StatsD server when the client is built: UDP packets to an address
+         * of this host, such as a local agent, fill the MTU of its interface, 64 KiB on a typical loopback
+         * interface, while packets to other hosts stay at 1400 bytes. Datagrams to a Unix domain socket take as
+         * much as the socket's send buffer does, up to 64 KiB. The StatsD server must read datagrams that large,
+         * e.g. with the Datadog agent's {@code dogstatsd_buffer_size}. Default: false
+         */
+        public Builder withAutoPacketSize(boolean autoPacketSize) {
+            this.autoPacketSize = autoPacketSize;
+            return this;
+        }
+
+        /**
+         * Connects to the StatsD server over TCP instead of sending UDP datagrams, so metrics aren't lost on the way
+         * as long as the connection holds. Writes never block the consumer thread: what the socket doesn't take
+         * right away is buffered (see {@link #withStreamBufferSize}), and when the connection fails the client
+         * reconnects with exponential backoff, up to 10 seconds apart, resolving the host name again. Takes
+         * precedence over the datagram options.
+         *
+         * @param hostname
+         *     the host name of the targeted StatsD server
+         * @param port
+         *     the TCP port of the targeted StatsD server
+         */
+        public Builder withTcpAddress(String hostname, int port) {
+            this.tcpHostname = hostname;
+            this.tcpPort = port;
+            return this;
+        }
+
+        /**
+         * Like {@link #withTcpAddress} but connects to a Unix domain stream socket. Takes precedence over
+         * {@link #withTcpAddress} and the datagram options.
+         *
+         * @param path
+         *     the path of the stream socket the StatsD server listens on
+         */
+        public Builder withUnixStreamSocket(String path) {
+            this.unixStreamSocketPath = path;
+            return this;
+        }
+
+        /**
+         * @param bytes
+         *     how much data to buffer while a stream connection is slow or down, beyond which packets are dropped;
+         *     only applies with {@link #withTcpAddress} or {@link #withUnixStreamSocket}; Default: 1 MiB
+         */
+        public Builder withStreamBufferSize(int bytes) {
+            if (bytes <= StreamTransport.PACKET_SIZE_BYTES) {
+                throw new IllegalArgumentException("stream buffer size must be larger than "
+                        + StreamTransport.PACKET_SIZE_BYTES);
+            }
+            this.streamBufferSize = bytes;
+            return this;
+        }
+
+        /**
+         * Sends packets through the given transport instead of a socket of the client's own. Takes precedence over
+         * all the address options. The client closes the transport when it is closed. Only works with a single
+         * shard, see {@link #withShards}.
+         */
+        public Builder withTransport(Transport transport) {
+            this.transport = transport;
+            return this;
+        }
+
+        /**
+         * @param constantTags
+         *     tags to be added to all content sent
+         */
+        public Builder withConstantTags(String... constantTags) {
+            this.constantTags = constantTags;
+            return this;
+        }
+
+        /**
+         * @param errorHandler
+         *     handler to use when an exception occurs during usage, may be null to indicate noop
+         */
+        public Builder withErrorHandler(StatsDClientErrorHandler errorHandler) {
+            this.errorHandler = errorHandler != null ? errorHandler : NO_OP_HANDLER;
+            return this;
+        }
+
+        /**
+         * @param formatOnConsumer
+         *     see {@link DisruptorStatsDClient#DisruptorStatsDClient(String, String, int, String[],
+         *     StatsDClientErrorHandler, boolean)}; Default: false
+         */
+        public Builder withFormatOnConsumer(boolean formatOnConsumer) {
+            this.formatOnConsumer = formatOnConsumer;
+            return this;
+        }
+
+        /**
+         * @param overflowPolicy
+         *     what to do with messages when the ring buffer is full; Default: {@link OverflowPolicy#dropNewest()}
+         */
+        public Builder withOverflowPolicy(OverflowPolicy overflowPolicy) {
+            if (overflowPolicy == null) {
+                throw new IllegalArgumentException("overflow policy must not be null");
+            }
+            this.overflowPolicy = overflowPolicy;
+            return this;
+        }
+
+        /**
+         * Lets a packet that isn't full wait for more messages, up to about the given time after its first message,
+         * rather than sending it at the end of every batch the consumer thread picks up. At moderate rates this
+         * sends fewer, fuller packets, and so fewer system calls, at the cost of messages waiting up to that long,
+         * plus up to a quarter of it when no more messages arrive.
+         *
+         * @param linger
+         *     how long the first message of a packet may wait for the packet to fill up; Default: 0
+         * @param unit
+         *     the unit of the linger time
+         */
+        public Builder withLinger(long linger, TimeUnit unit) {
+            if (linger < 0) {
+                throw new IllegalArgumentException("linger must not be negative");
+            }
+            this.lingerNanos = unit.toNanos(linger);
+            return this;
+        }
+
+        /**
+         * Spreads producers over several ring buffers, each with a consumer thread and a socket of its own, so that
+         * many threads calling the client at once don't all contend on a single ring buffer's sequence. Every
+         * thread always publishes to the same ring buffer, picked by its id, so its messages still go out in
+         * order. Each ring buffer takes as much memory as a single one does, and the overflow policy applies to
+         * each separately. Can't be combined with {@link #withTransport}, as a transport serves a single consumer
+         * thread. Default: 1
+         *
+         * @param shards
+         *     the number of ring buffers, must be positive
+         */
+        public Builder withShards(int shards) {
+            if (shards <= 0) {
+                throw new IllegalArgumentException("shards must be positive");
+            }
+            this.shards = shards;
+            return this;
+        }
+
+        /**
+         * @param ringSize
+         *     the number of messages each ring buffer holds, must be a power of two; a larger ring buffer rides
+         *     out longer bursts before the overflow policy kicks in, at the cost of memory; Default: 16384
+         */
+        public Builder withRingSize(int ringSize) {
+            if (ringSize <= 0 || Integer.bitCount(ringSize) != 1) {
+                throw new IllegalArgumentException("ring size must be a positive power of two");
+            }
+            this.ringSize = ringSize;
+            return this;
+        }
+
+        /**
+         * Sets how the consumer thread waits for messages, trading producer latency against CPU use while idle:
+         * <ul>
+         * <li>{@link BlockingWaitStrategy} parks the consumer, so it takes no CPU while idle, but producers take a
+         * lock to wake it up;</li>
+         * <li>{@link SleepingWaitStrategy} spins, yields and then sleeps briefly, so producers never signal and an
+         * idle consumer takes little CPU, at the cost of messages waiting up to about 100 microseconds;</li>
+         * <li>{@link YieldingWaitStrategy} and {@link BusySpinWaitStrategy} keep the consumer spinning, for the
+         * lowest latency at the cost of a core per shard;</li>
+         * <li>{@link TimeoutBlockingWaitStrategy} blocks like the default but wakes up the consumer periodically,
+         * which {@link #withLinger} and the stream transports need to send what they hold back.</li>
+         * </ul>
+         * The default is {@link BlockingWaitStrategy}, or a {@link TimeoutBlockingWaitStrategy} timing out after
+         * a quarter of the linger time, or 10 milliseconds with a stream transport, when those need it.
+         *
+         * @param waitStrategy
+         *     called once per shard, e.g. {@code YieldingWaitStrategy::new}; may be null for the default
+         */
+        public Builder withWaitStrategy(Supplier<? extends WaitStrategy> waitStrategy) {
+            this.waitStrategy = waitStrategy;
+            return this;
+        }
+
+        /**
+         * Lets the ring buffer assume a single thread publishes to it, which saves producers a compare-and-swap on
+         * every message. Only safe when a single thread at a time calls the client, per shard; several threads
+         * publishing at once lose messages or corrupt the ring buffer. Can't be combined with
+         * {@link #withTelemetry}, whose thread publishes too. Default: false
+         */
+        public Builder withSingleProducer(boolean singleProducer) {
+            this.singleProducer = singleProducer;
+            return this;
+        }
+
+        /**
+         * @param threadFactory
+         *     creates the consumer threads, one per shard, e.g. to set their names, priority or affinity; the
+         *     threads must be daemon threads unless the client is always closed; may be null for daemon threads
+         *     named {@code statsd-disruptor-*}
+         */
+        public Builder withThreadFactory(ThreadFactory threadFactory) {
+            this.threadFactory = threadFactory;
+            return this;
+        }
+
+        /**
+         * Turns on self-telemetry: the client periodically sends metrics about itself, such as the number of
+         * messages queued and dropped, packets and bytes sent and the ring buffer usage, named
+         * {@code statsd.client.*} without the prefix. Default: off
+         *
+         * @param interval
+         *     how often the client reports, must be positive
+         * @param unit
+         *     the unit of the interval
+         */
+        public Builder withTelemetry(long interval, TimeUnit unit) {
+            if (interval <= 0) {
+                throw new IllegalArgumentException("telemetry interval must be positive");
+            }
+            this.telemetryInterval = interval;
+            this.telemetryUnit = unit;
+            return this;
+        }
+
+        /**
+         * @param clientId
+         *     the value of the {@code client_id} tag on the client's telemetry; Default: a number unique within
+         *     the JVM
+         */
+        public Builder withClientId(String clientId) {
+            this.clientId = clientId;
+            return this;
+        }
+
+        public DisruptorStatsDClient build() throws StatsDClientException {
+            if (hostname == null && unixSocketPath == null && tcpHostname == null && unixStreamSocketPath == null
+                    && transport == null) {
+                throw new IllegalStateException("an address, a socket or a transport must be set");
+            }
+            if (transport != null && shards > 1) {
+                throw new IllegalStateException("a transport can't be shared by several shards");
+            }
+            if (singleProducer && telemetryInterval > 0) {
+                throw new IllegalStateException("telemetry needs a multi-producer ring buffer");
+            }
+            if (waitStrategy != null && needsTimeout()) {
+                final WaitStrategy sample = waitStrategy.get();
+                if (!(sample instanceof TimeoutBlockingWaitStrategy)
+                        && !(sample instanceof LiteTimeoutBlockingWaitStrategy)) {
+                    throw new IllegalStateException(
+                            "linger and stream transports need a timeout blocking wait strategy");
+                }
+            }
+            return new DisruptorStatsDClient(this);
+        }
+
+        /**
+         * Whether the consumer must wake up while idle, to send lingering packets or what a transport buffered.
+         */
+        private boolean needsTimeout() {
+            if (lingerNanos > 0) {
+                return true;
+            }
+            if (transport != null) {
+                return transport.isBuffered();
+            }
+            return tcpHostname != null || unixStreamSocketPath != null;
+        }
+
+        /**
+         * Opens a transport per shard, closing those already open if one fails.
+         */
+        private Transport[] transports() throws StatsDClientException {
+            final Transport[] transports = new Transport[shards];
+            try {
+                for (int i = 0; i < shards; i++) {
+                    transports[i] = transport();
+                }
+            } catch (RuntimeException e) {
+                for (final Transport opened : transports) {
+                    if (opened != null) {
+                        try {
+                            opened.close();
+                        } catch (IOException ignored) {
+                        }
+                    }
+                }
+                throw e;
+            }
+            return transports;
+        }
+
+        private Transport transport() throws StatsDClientException {
+            if (transport != null) {
+                return transport;
+            }
+            if (unixStreamSocketPath != null) {
+                return new StreamTransport(StreamTransport.unixSocket(unixStreamSocketPath), streamBufferSize,
+                        errorHandler);
+            }
+            if (tcpHostname != null) {
+                return new StreamTransport(() -> resolveAddress(tcpHostname, tcpPort), streamBufferSize,
+                        errorHandler);
+            }
+            if (unixSocketPath != null) {
+                return DatagramTransport.unixSocket(unixSocketPath, packetSize());
+            }
+            return udp(hostname, port, addressTtlNanos, connectedSocket, packetSize());
+        }
+
+        private int packetSize() {
+            if (maxPacketSize > 0) {
+                return maxPacketSize;
             }
+            return autoPacketSize ? DatagramTransport.AUTO_PACKET_SIZE : 0;
         }
     }
 
@@ -0,0 +1,186 @@
+package com.timgroup.statsd;
+
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.text.NumberFormat;
+import java.util.Locale;
+
+/**
+ * Writes doubles in the plain decimal notation dogstatsd expects, without going through
+ * {@link java.text.DecimalFormat} (which allocates a StringBuffer and a digit list per call).
+ *
+ * <p>Two modes are supported, matching the formatters this class replaces:
+ * <ul>
+ *     <li>{@link #appendValue} - at most 6 fraction digits, trailing zeros dropped, e.g. {@code 0.423}</li>
+ *     <li>{@link #appendFixed} - exactly 6 fraction digits, e.g. {@code 1.000000}</li>
+ * </ul>
+ * Both round half-even, never use grouping or exponent notation, print {@code NaN} for NaN and keep the
+ * sign of negative values that round to zero ({@code -0}). Infinities are written as {@code Infinity} and
+ * {@code -Infinity}, which dogstatsd can parse, rather than DecimalFormat's infinity symbol.</p>
+ *
+ * <p>Values of magnitude below 2<sup>30</sup> are rounded directly from their binary value. Larger values
+ * have fewer than 7 significant fraction digits, so their shortest round-trip representation is searched
+ * for instead, which is what DecimalFormat prints for them. The rare values that fall too close to a
+ * rounding tie for either method to be certain, or that are too large to be handled exactly, are handed
+ * to DecimalFormat so the output stays identical.</p>
+ */
+final class DoubleFormatter {
+    static final int FRACTION_DIGITS = 6;
+
+    private static final long[] POWERS_OF_TEN = {1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L};
+    private static final long SCALE = POWERS_OF_TEN[FRACTION_DIGITS];
+
+    /** From here on the fraction has at most 22 significant bits, so the shortest search below is exact. */
+    private static final double SHORTEST_THRESHOLD = 0x1p30;
+
+    /** From here on every double is an integer, but its shortest representation may need more than a long. */
+    private static final double FALLBACK_THRESHOLD = 0x1p53;
+
+    private static final int SHORTEST_MAX_DIGITS = 7;
+
+    private static final ThreadLocal<NumberFormat> VALUE_FALLBACK = ThreadLocal.withInitial(() -> {
+        final NumberFormat numberFormatter = fallbackFormatter();
+        numberFormatter.setMaximumFractionDigits(FRACTION_DIGITS);
+        return numberFormatter;
+    });
+
+    private static final ThreadLocal<NumberFormat> FIXED_FALLBACK = ThreadLocal.withInitial(() -> {
+        final NumberFormat numberFormatter = fallbackFormatter();
+        numberFormatter.setMinimumFractionDigits(FRACTION_DIGITS);
+        return numberFormatter;
+    });
+
+    private DoubleFormatter() {}
+
+    /**
+     * Appends the value with at most 6 fraction digits and no trailing zeros.
+     */
+    static void appendValue(final StringBuilder sb, final double value) {
+        append(sb, value, false);
+    }
+
+    /**
+     * Appends the value with exactly 6 fraction digits.
+     */
+    static void appendFixed(final StringBuilder sb, final double value) {
+        append(sb, value, true);
+    }
+
+    private static void append(final StringBuilder sb, final double value, final boolean fixed) {
+        if (Double.isNaN(value)) {
+            sb.append("NaN");
+            return;
+        }
+        final boolean negative = Double.doubleToRawLongBits(value) < 0;
+        final double abs = Math.abs(value);
+        if (abs == Double.POSITIVE_INFINITY) {
+            sb.append(negative ? "-Infinity" : "Infinity");
+            return;
+        }
+        if (abs >= FALLBACK_THRESHOLD) {
+            sb.append((fixed ? FIXED_FALLBACK : VALUE_FALLBACK).get().format(value));
+            return;
+        }
+
+        final long integral = (long) abs;
+        final long fraction = abs < SHORTEST_THRESHOLD
+                ? roundedFraction(abs, integral)
+                : shortestFraction(abs, integral);
+        if (fraction < 0) {
+            sb.append((fixed ? FIXED_FALLBACK : VALUE_FALLBACK).get().format(value));
+            return;
+        }
+
+        if (negative) {
+            sb.append('-');
+        }
+        if (fraction == SCALE) {
+            sb.append(integral + 1);
+            appendFraction(sb, 0, fixed);
+        } else {
+            sb.append(integral);
+            appendFraction(sb, fraction, fixed);
+        }
+    }
+
+    /**
+     * Rounds the fraction of {@code abs} to 6 digits, returning it scaled by 10<sup>6</sup>, or -1 when
+     * the scaled fraction is within rounding error of a tie.
+     */
+    private static long roundedFraction(final double abs, final long integral) {
+        // abs - integral is exact; scaling it costs at most half an ulp of 10^6. DecimalFormat rounds the
+        // shortest representation rather than the binary value, which may be another half ulp of abs away.
+        final double scaled = (abs - integral) * SCALE;
+        final double guard = Math.ulp(abs) * SCALE + Math.ulp((double) SCALE);
+        if (Math.abs(scaled - Math.floor(scaled) - 0.5) <= guard) {
+            return -1;
+        }
+        return (long) Math.rint(scaled);
+    }
+
+    /**
+     * Finds the fraction of the shortest decimal that rounds back to {@code abs} and rounds it to 6 digits,
+     * returning it scaled by 10<sup>6</sup>, or -1 if the result depends on how a tie is broken.
+     */
+    private static long shortestFraction(final double abs, final long integral) {
+        // The fraction is a multiple of ulp(abs) >= 2^-22, so it and its products with 10^k (k <= 7)
+        // fit in 53 bits and every step below is exact.
+        final double fraction = abs - integral;
+        final double halfUlp = Math.ulp(abs) / 2;
+        for (int digits = 0; digits <= SHORTEST_MAX_DIGITS; digits++) {
+            final double scaled = fraction * POWERS_OF_TEN[digits];
+            final double candidate = Math.rint(scaled);
+            final double error = Math.abs(candidate - scaled);
+            final double tolerance = halfUlp * POWERS_OF_TEN[digits];
+            if (error > tolerance) {
+                continue;
+            }
+            if (error == tolerance) {
+                return -1;
+            }
+            final long shortest = (long) candidate;
+            if (digits <= FRACTION_DIGITS) {
+                return shortest * POWERS_OF_TEN[FRACTION_DIGITS - digits];
+            }
+            final long last = shortest % 10;
+            if (last == 5) {
+                return -1;
+            }
+            return shortest / 10 + (last > 5 ? 1 : 0);
+        }
+        return -1;
+    }
+
+    private static void appendFraction(final StringBuilder sb, long fraction, final boolean fixed) {
+        int digits = FRACTION_DIGITS;
+        if (!fixed) {
+            if (fraction == 0) {
+                return;
+            }
+            while (fraction % 10 == 0) {
+                fraction /= 10;
+                digits--;
+            }
+        }
+        sb.append('.');
+        for (long divisor = POWERS_OF_TEN[digits - 1]; divisor > 0; divisor /= 10) {
+            sb.append((char) ('0' + (fraction / divisor) % 10));
+        }
+    }
+
+    private static NumberFormat fallbackFormatter() {
+        // Always create the formatter for the US locale in order to avoid this bug:
+        // https://github.com/indeedeng/java-dogstatsd-client/issues/3
+        final NumberFormat numberFormatter = NumberFormat.getInstance(Locale.US);
+        numberFormatter.setGroupingUsed(false);
+        // we need to specify a value for Double.NaN that is recognized by dogStatsD
+        if (numberFormatter instanceof DecimalFormat) {
+            final DecimalFormat decimalFormat = (DecimalFormat) numberFormatter;
+            final DecimalFormatSymbols symbols = decimalFormat.getDecimalFormatSymbols();
+            symbols.setNaN("NaN");
+            symbols.setInfinity("Infinity");
+            decimalFormat.setDecimalFormatSymbols(symbols);
+        }
+        return numberFormatter;
+    }
+}
@@ -0,0 +1,120 @@
+package com.timgroup.statsd;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Counts the messages an asynchronous client dropped, by kind (one per {@link MetricType} plus events,
+ * service checks and anything else) and by reason. Counting is lock-free and only costs anything when a
+ * message is dropped.
+ */
+final class DropCounters {
+    enum Reason {
+        /** The queue was full. */
+        QUEUE_FULL,
+        /** The queue was filling up and the overflow policy sheds load. */
+        SAMPLE_DOWN,
+        /** The message was the oldest in the queue when another one needed room. */
+        EVICTED,
+        /** The message is larger than the transport takes, even in a packet of its own. */
+        TOO_LARGE;
+
+        /** The value of the {@code reason} tag in telemetry. */
+        String tag() {
+            return name().toLowerCase(Locale.US);
+        }
+    }
+
+    private static final int EVENT = MetricType.values().length;
+    private static final int SERVICE_CHECK = EVENT + 1;
+    private static final int OTHER = EVENT + 2;
+
+    private static final String[] NAMES = new String[OTHER + 1];
+
+    static {
+        for (final MetricType type : MetricType.values()) {
+            NAMES[type.ordinal()] = type.name().toLowerCase(Locale.US);
+        }
+        NAMES[EVENT] = "event";
+        NAMES[SERVICE_CHECK] = "service_check";
+        NAMES[OTHER] = "other";
+    }
+
+    private final StripedLong[] counts = new StripedLong[NAMES.length];
+    private final StripedLong[] reasons = new StripedLong[Reason.values().length];
+
+    DropCounters() {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new StripedLong();
+        }
+        for (int i = 0; i < reasons.length; i++) {
+            reasons[i] = new StripedLong();
+        }
+    }
+
+    void record(final MetricType type, final Reason reason) {
+        counts[type.ordinal()].add(1);
+        reasons[reason.ordinal()].add(1);
+    }
+
+    /**
+     * Counts a rendered message, telling its kind from the message itself.
+     */
+    void record(final CharSequence message, final Reason reason) {
+        counts[kindOf(message)].add(1);
+        reasons[reason.ordinal()].add(1);
+    }
+
+    long dropped(final Reason reason) {
+        return reasons[reason.ordinal()].sum();
+    }
+
+    long total() {
+        long total = 0;
+        for (final StripedLong count : counts) {
+            total += count.sum();
+        }
+        return total;
+    }
+
+    /**
+     * Returns the counts so far, keyed by {@code counter}, {@code gauge}, {@code timer}, {@code histogram},
+     * {@code set}, {@code event}, {@code service_check} and {@code other}.
+     */
+    Map<String, Long> snapshot() {
+        final Map<String, Long> snapshot = new LinkedHashMap<>();
+        for (int i = 0; i < counts.length; i++) {
+            snapshot.put(NAMES[i], counts[i].sum());
+        }
+        return snapshot;
+    }
+
+    private static int kindOf(final CharSequence message) {
+        final int length = message.length();
+        if (length > 3 && message.charAt(0) == '_') {
+            if (message.charAt(1) == 'e' && message.charAt(2) == '{') {
+                return EVENT;
+            }
+            if (message.charAt(1) == 's' && message.charAt(2) == 'c' && message.charAt(3) == '|') {
+                return SERVICE_CHECK;
+            }
+        }
+        // name:value|type[|@rate][|#tags]
+        int start = 0;
+        while (start < length && message.charAt(start) != '|') {
+            start++;
+        }
+        int end = ++start;
+        while (end < length && message.charAt(end) != '|') {
+            end++;
+        }
+        for (final MetricType type : MetricType.values()) {
+            final String indicator = type.getIndicator();
+            if (indicator.length() == end - start && indicator.contentEquals(message.subSequence(start, end))) {
+                return type.ordinal();
+            }
+        }
+        return OTHER;
+    }
+}
@@ -0,0 +1,45 @@
+package com.timgroup.statsd;
+
+/**
+ * A gauge bound to a fixed aspect and set of tags, obtained from {@link StatsDClient#gauge(String, String[])}.
+ *
+ * <p>These methods are non-blocking and are guaranteed not to throw an exception.</p>
+ */
+public interface Gauge {
+
+    /**
+     * Records the latest value of the gauge.
+     *
+     * @param value
+     *     the new reading of the gauge
+     */
+    void record(double value);
+
+    /**
+     * Records the latest value of the gauge.
+     *
+     * @param value
+     *     the new reading of the gauge
+     * @param sampleRate
+     *     percentage of time metric to be sent
+     */
+    void record(double value, double sampleRate);
+
+    /**
+     * Records the latest value of the gauge.
+     *
+     * @param value
+     *     the new reading of the gauge
+     */
+    void record(long value);
+
+    /**
+     * Records the latest value of the gauge.
+     *
+     * @param value
+     *     the new reading of the gauge
+     * @param sampleRate
+     *     percentage of time metric to be sent
+     */
+    void record(long value, double sampleRate);
+}
@@ -0,0 +1,46 @@
+package com.timgroup.statsd;
+
+/**
+ * A histogram bound to a fixed aspect and set of tags, obtained from
+ * {@link StatsDClient#histogram(String, String[])}.
+ *
+ * <p>These methods are non-blocking and are guaranteed not to throw an exception.</p>
+ */
+public interface Histogram {
+
+    /**
+     * Records a value to be incorporated in the histogram.
+     *
+     * @param value
+     *     the value to be incorporated in the histogram
+     */
+    void record(double value);
+
+    /**
+     * Records a value to be incorporated in the histogram.
+     *
+     * @param value
+     *     the value to be incorporated in the histogram
+     * @param sampleRate
+     *     percentage of time metric to be sent
+     */
+    void record(double value, double sampleRate);
+
+    /**
+     * Records a value to be incorporated in the histogram.
+     *
+     * @param value
+     *     the value to be incorporated in the histogram
+     */
+    void record(long value);
+
+    /**
+     * Records a value to be incorporated in the histogram.
+     *
+     * @param value
+     *     the value to be incorporated in the histogram
+     * @param sampleRate
+     *     percentage of time metric to be sent
+     */
+    void record(long value, double sampleRate);
+}
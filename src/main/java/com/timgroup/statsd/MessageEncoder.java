@@ -0,0 +1,186 @@
+package com.timgroup.statsd;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Renders dogstatsd lines by appending their parts to a {@link StringBuilder}, avoiding the
+ * {@link java.util.Formatter} parsing, intermediate collections and streams that
+ * {@link String#format} and a joined tag list would otherwise cost on every metric.
+ *
+ * <p>The output is byte-for-byte the same as the format strings it replaces, e.g.
+ * {@code "%s%s:%d|c|@%s%s"} for a sampled counter.</p>
+ */
+final class MessageEncoder {
+    /**
+     * Sample rate passed by the unsampled methods, which must not emit a {@code |@} section at all
+     * (even though a rate of 1.0 would be equivalent).
+     */
+    static final double NO_SAMPLE_RATE = Double.NaN;
+
+    /**
+     * Builders larger than this are not kept for reuse, so a single oversized event doesn't pin
+     * a large array to the thread forever.
+     */
+    private static final int MAX_RETAINED_CAPACITY = 8192;
+
+    private static final ThreadLocal<StringBuilder> BUILDERS = ThreadLocal.withInitial(() -> new StringBuilder(256));
+
+    private MessageEncoder() {}
+
+    /**
+     * Returns the calling thread's builder, emptied. The content is only valid until the next call
+     * on the same thread, so callers must turn it into a String (or copy it) before returning.
+     */
+    static StringBuilder builder() {
+        StringBuilder sb = BUILDERS.get();
+        if (sb.capacity() > MAX_RETAINED_CAPACITY) {
+            sb = new StringBuilder(256);
+            BUILDERS.set(sb);
+        }
+        sb.setLength(0);
+        return sb;
+    }
+
+    static StringBuilder appendMetric(final StringBuilder sb, final String prefix, final String aspect, final long value,
+                                      final MetricType type, final double sampleRate, final String[] tags,
+                                      final String constantTags) {
+        sb.append(prefix).append(aspect).append(':').append(value);
+        return appendTrailer(sb, type, sampleRate, tags, constantTags);
+    }
+
+    static StringBuilder appendMetric(final StringBuilder sb, final String prefix, final String aspect, final double value,
+                                      final MetricType type, final double sampleRate, final String[] tags,
+                                      final String constantTags) {
+        sb.append(prefix).append(aspect).append(':');
+        appendValue(sb, value);
+        return appendTrailer(sb, type, sampleRate, tags, constantTags);
+    }
+
+    static StringBuilder appendMetric(final StringBuilder sb, final String prefix, final String aspect, final String value,
+                                      final MetricType type, final double sampleRate, final String[] tags,
+                                      final String constantTags) {
+        sb.append(prefix).append(aspect).append(':').append(value);
+        return appendTrailer(sb, type, sampleRate, tags, constantTags);
+    }
+
+    private static StringBuilder appendTrailer(final StringBuilder sb, final MetricType type, final double sampleRate,
+                                               final String[] tags, final String constantTags) {
+        sb.append('|').append(type.getIndicator());
+        if (!Double.isNaN(sampleRate)) {
+            sb.append("|@");
+            appendSampleRate(sb, sampleRate);
+        }
+        appendTags(sb, tags, constantTags);
+        return sb;
+    }
+
+    /**
+     * Appends a gauge or histogram value with at most 6 fraction digits and no trailing zeros.
+     */
+    static void appendValue(final StringBuilder sb, final double value) {
+        DoubleFormatter.appendValue(sb, value);
+    }
+
+    /**
+     * Appends a sample rate with exactly 6 fraction digits.
+     */
+    static void appendSampleRate(final StringBuilder sb, final double sampleRate) {
+        DoubleFormatter.appendFixed(sb, sampleRate);
+    }
+
+    /**
+     * Appends the tag suffix for the given tags, see {@link StringMessageStatsDClient#tagString(String[], String)}.
+     * Null and empty tags are skipped.
+     */
+    static void appendTags(final StringBuilder sb, final String[] tags, final String tagPrefix) {
+        boolean first = true;
+        if (tagPrefix != null && !tagPrefix.isEmpty()) {
+            sb.append(tagPrefix);
+            first = false;
+        }
+        if (tags != null) {
+            for (final String tag : tags) {
+                if (tag == null || tag.isEmpty()) {
+                    continue;
+                }
+                if (!first) {
+                    sb.append(',');
+                } else {
+                    if (tagPrefix == null) {
+                        sb.append("|#");
+                    }
+                    first = false;
+                }
+                sb.append(tag);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of bytes {@link #putUtf8} will write for the given characters.
+     */
+    static int utf8Length(final CharSequence chars) {
+        final int length = chars.length();
+        int bytes = length;
+        for (int i = 0; i < length; i++) {
+            final char c = chars.charAt(i);
+            if (c >= 0x80) {
+                if (c < 0x800) {
+                    bytes += 1;
+                } else if (!Character.isSurrogate(c)) {
+                    bytes += 2;
+                } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(chars.charAt(i + 1))) {
+                    // four bytes for the pair
+                    bytes += 2;
+                    i++;
+                }
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Writes the characters to the buffer as UTF-8, with a fast path for ASCII. Unpaired surrogates are
+     * replaced by {@code '?'}, as {@link String#getBytes(java.nio.charset.Charset)} does. The caller must make
+     * sure there is room for {@link #utf8Length} bytes.
+     */
+    static void putUtf8(final CharSequence chars, final ByteBuffer buffer) {
+        final int length = chars.length();
+        // leading ASCII goes in with absolute puts, which don't move the position byte by byte; that's most of a
+        // metric, and all of it usually
+        int i = 0;
+        int position = buffer.position();
+        while (i < length) {
+            final char c = chars.charAt(i);
+            if (c >= 0x80) {
+                break;
+            }
+            buffer.put(position++, (byte) c);
+            i++;
+        }
+        buffer.position(position);
+        while (i < length) {
+            final char c = chars.charAt(i++);
+            if (c < 0x80) {
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xC0 | (c >> 6)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i < length && Character.isLowSurrogate(chars.charAt(i))) {
+                    final int codePoint = Character.toCodePoint(c, chars.charAt(i++));
+                    buffer.put((byte) (0xF0 | (codePoint >> 18)));
+                    buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                    buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                    buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+                } else {
+                    buffer.put((byte) '?');
+                }
+            } else {
+                buffer.put((byte) (0xE0 | (c >> 12)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+}
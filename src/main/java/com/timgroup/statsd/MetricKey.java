@@ -0,0 +1,63 @@
+package com.timgroup.statsd;
+
+import java.util.Arrays;
+
+/**
+ * Identifies a metric context, i.e. a type, aspect and tag list, for client-side aggregation.
+ */
+final class MetricKey {
+    private final MetricType type;
+    private final String aspect;
+    private final String[] tags;
+    private final int hash;
+
+    MetricKey(final MetricType type, final String aspect, final String[] tags) {
+        this.type = type;
+        this.aspect = aspect;
+        this.tags = (tags != null && tags.length == 0) ? null : tags;
+        this.hash = 31 * (31 * type.hashCode() + (aspect == null ? 0 : aspect.hashCode())) + Arrays.hashCode(this.tags);
+    }
+
+    /**
+     * Returns a key that doesn't share the tags array with the caller, suitable for storing.
+     */
+    MetricKey immutableCopy() {
+        return tags == null ? this : new MetricKey(type, aspect, tags.clone());
+    }
+
+    MetricType getType() {
+        return type;
+    }
+
+    String getAspect() {
+        return aspect;
+    }
+
+    String[] getTags() {
+        return tags;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof MetricKey)) {
+            return false;
+        }
+        final MetricKey other = (MetricKey) o;
+        return hash == other.hash && type == other.type
+                && (aspect == null ? other.aspect == null : aspect.equals(other.aspect))
+                && Arrays.equals(tags, other.tags);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return aspect + "|" + type.getIndicator() + (tags == null ? "" : "|#" + String.join(",", tags));
+    }
+}
@@ -0,0 +1,61 @@
+package com.timgroup.statsd;
+
+/**
+ * The constant parts of a metric line (prefix, aspect, type and tags), rendered once so that
+ * recording a value only has to write the value and, if given, the sample rate.
+ */
+final class MetricTemplate {
+    private final MetricKey key;
+    private final String head;
+    private final String indicator;
+    private final String tags;
+
+    MetricTemplate(final String prefix, final String aspect, final MetricType type, final String[] tags,
+                   final String constantTags) {
+        this.key = new MetricKey(type, aspect, tags).immutableCopy();
+        this.head = prefix + aspect + ':';
+        this.indicator = '|' + type.getIndicator();
+        this.tags = StringMessageStatsDClient.tagString(tags, constantTags);
+    }
+
+    MetricType getType() {
+        return key.getType();
+    }
+
+    /**
+     * The context this template renders, used to aggregate values recorded through handles.
+     */
+    MetricKey getKey() {
+        return key;
+    }
+
+    StringBuilder render(final long value, final double sampleRate) {
+        final StringBuilder sb = MessageEncoder.builder().append(head).append(value);
+        return appendTrailer(sb, sampleRate);
+    }
+
+    StringBuilder render(final double value, final double sampleRate) {
+        final StringBuilder sb = MessageEncoder.builder().append(head);
+        MessageEncoder.appendValue(sb, value);
+        return appendTrailer(sb, sampleRate);
+    }
+
+    StringBuilder render(final String value, final double sampleRate) {
+        final StringBuilder sb = MessageEncoder.builder().append(head).append(value);
+        return appendTrailer(sb, sampleRate);
+    }
+
+    private StringBuilder appendTrailer(final StringBuilder sb, final double sampleRate) {
+        sb.append(indicator);
+        if (!Double.isNaN(sampleRate)) {
+            sb.append("|@");
+            MessageEncoder.appendSampleRate(sb, sampleRate);
+        }
+        return sb.append(tags);
+    }
+
+    @Override
+    public String toString() {
+        return head + "<value>" + indicator + tags;
+    }
+}
@@ -0,0 +1,25 @@
+package com.timgroup.statsd;
+
+/**
+ * The metric types understood by dogstatsd, along with the type indicator used on the wire.
+ */
+enum MetricType {
+    COUNTER("c"),
+    GAUGE("g"),
+    TIMER("ms"),
+    HISTOGRAM("h"),
+    SET("s");
+
+    private final String indicator;
+
+    MetricType(final String indicator) {
+        this.indicator = indicator;
+    }
+
+    /**
+     * The type indicator appended after the value, e.g. {@code "c"} in {@code "name:1|c"}.
+     */
+    String getIndicator() {
+        return indicator;
+    }
+}
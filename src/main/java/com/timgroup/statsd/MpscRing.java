@@ -0,0 +1,201 @@
+package com.timgroup.statsd;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded, array-backed queue for many producer threads and a single consumer thread.
+ *
+ * <p>Producers claim a slot with a single CAS on the producer index and then publish the element into it, so
+ * there is no lock to contend on and nothing is allocated per element. The consumer takes elements in order,
+ * emptying each slot behind it; a claimed slot that is still empty means its producer is about to fill it.
+ * When the queue is empty the consumer parks, and the first producer to see it parked wakes it up.</p>
+ *
+ * <p>A weighted queue also keeps an int per element, such as its size, given by the producer and read by the
+ * consumer with {@link #weight()}, so the consumer doesn't have to work it out again.</p>
+ *
+ * <p>Only one thread may call {@link #poll()}, {@link #poll(long, TimeUnit)}, {@link #weight()} and
+ * {@link #isEmpty()}.</p>
+ */
+final class MpscRing<E> {
+    /** Indexes are spaced a cache line apart to avoid false sharing between producers and the consumer. */
+    private static final int PADDING = 8;
+    private static final int PRODUCER_INDEX = PADDING;
+    private static final int CONSUMER_INDEX = 2 * PADDING;
+    private static final int PRODUCER_LIMIT = 3 * PADDING;
+
+    private final AtomicReferenceArray<E> slots;
+    /** The weight of the element in each slot, or null if the queue isn't weighted. */
+    private final int[] weights;
+    private final int mask;
+    private final AtomicLongArray indexes = new AtomicLongArray(4 * PADDING);
+    private final AtomicBoolean consumerParked = new AtomicBoolean();
+    private volatile Thread consumer;
+    /** Set by {@link #wake()} until the consumer's wait returns. */
+    private volatile boolean woken;
+    /** The weight of the element the consumer took last. */
+    private int lastWeight;
+
+    /**
+     * @param capacity
+     *     the maximum number of elements, rounded up to a power of two
+     */
+    MpscRing(final int capacity) {
+        this(capacity, false);
+    }
+
+    /**
+     * @param capacity
+     *     the maximum number of elements, rounded up to a power of two
+     * @param weighted
+     *     whether to keep the weight each element is offered with
+     */
+    MpscRing(final int capacity, final boolean weighted) {
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("capacity must be between 1 and 2^30: " + capacity);
+        }
+        final int size = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        slots = new AtomicReferenceArray<>(size);
+        weights = weighted ? new int[size] : null;
+        mask = size - 1;
+        indexes.set(PRODUCER_LIMIT, size);
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Adds the element unless the queue is full.
+     *
+     * @return false if the queue was full
+     */
+    boolean offer(final E element) {
+        return offer(element, 0);
+    }
+
+    /**
+     * Adds the element with the given weight unless the queue is full. The weight is only kept by a weighted
+     * queue.
+     *
+     * @return false if the queue was full
+     */
+    boolean offer(final E element, final int weight) {
+        long index;
+        do {
+            index = indexes.get(PRODUCER_INDEX);
+            if (index >= indexes.get(PRODUCER_LIMIT)) {
+                // the cached limit is stale more often than the queue is actually full
+                final long limit = indexes.get(CONSUMER_INDEX) + mask + 1;
+                if (index >= limit) {
+                    return false;
+                }
+                indexes.set(PRODUCER_LIMIT, limit);
+            }
+        } while (!indexes.compareAndSet(PRODUCER_INDEX, index, index + 1));
+        final int offset = (int) index & mask;
+        if (weights != null) {
+            // published along with the element by the ordered write below
+            weights[offset] = weight;
+        }
+        slots.lazySet(offset, element);
+        if (consumerParked.get() && consumerParked.compareAndSet(true, false)) {
+            LockSupport.unpark(consumer);
+        }
+        return true;
+    }
+
+    /**
+     * Takes the next element, or returns null if the queue is empty.
+     */
+    E poll() {
+        final long index = indexes.get(CONSUMER_INDEX);
+        final int offset = (int) index & mask;
+        E element = slots.get(offset);
+        if (element == null) {
+            if (index == indexes.get(PRODUCER_INDEX)) {
+                return null;
+            }
+            // the slot is claimed but not filled yet
+            do {
+                element = slots.get(offset);
+            } while (element == null);
+        }
+        if (weights != null) {
+            lastWeight = weights[offset];
+        }
+        slots.lazySet(offset, null);
+        indexes.lazySet(CONSUMER_INDEX, index + 1);
+        return element;
+    }
+
+    /**
+     * Returns the weight of the element the consumer took last, or 0 if the queue isn't weighted.
+     */
+    int weight() {
+        return lastWeight;
+    }
+
+    /**
+     * Takes the next element, waiting up to the given time for one to arrive or for {@link #wake()} to be called.
+     *
+     * @return the element, or null if none arrived in time
+     */
+    E poll(final long timeout, final TimeUnit unit) throws InterruptedException {
+        E element = poll();
+        if (element != null) {
+            return element;
+        }
+        consumer = Thread.currentThread();
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (true) {
+            consumerParked.set(true);
+            element = poll();
+            if (element != null) {
+                consumerParked.set(false);
+                return element;
+            }
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0 || woken) {
+                woken = false;
+                consumerParked.set(false);
+                return null;
+            }
+            LockSupport.parkNanos(this, remaining);
+            if (Thread.interrupted()) {
+                consumerParked.set(false);
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    /**
+     * Makes the consumer's current or next {@link #poll(long, TimeUnit)} return right away, e.g. to have it notice
+     * that it should stop.
+     */
+    void wake() {
+        woken = true;
+        final Thread consumer = this.consumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     * Returns whether the queue is empty, as seen by the consumer.
+     */
+    boolean isEmpty() {
+        return indexes.get(CONSUMER_INDEX) == indexes.get(PRODUCER_INDEX);
+    }
+
+    /**
+     * Returns the number of elements queued; only an estimate while producers are active.
+     */
+    int size() {
+        final long size = indexes.get(PRODUCER_INDEX) - indexes.get(CONSUMER_INDEX);
+        return (int) Math.max(0, Math.min(size, mask + 1));
+    }
+}
@@ -5,10 +5,12 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
-import java.nio.channels.DatagramChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.util.Map;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 
 
@@ -34,6 +36,10 @@ import java.util.concurrent.*;
  * IO operations being carried out in a separate thread. Furthermore, these methods are guaranteed
  * not to throw an exception which may disrupt application execution.
  *
+ * <p>Messages wait for the IO thread in a queue bounded both by a number of messages and by their total
+ * size (8 MiB by default, see {@link Builder#withQueueMemoryBudget}). What happens to messages that don't fit
+ * is up to the {@link OverflowPolicy}; by default they are dropped, and counted in {@link #getDroppedMessages()}.</p>
+ *
  * <p>As part of a clean system shutdown, the {@link #close()} method should be invoked
  * on any StatsD clients.</p>
  *
@@ -43,11 +49,15 @@ import java.util.concurrent.*;
 public class NonBlockingStatsDClient extends StringMessageStatsDClient {
 
     public static final Charset MESSAGE_CHARSET = StandardCharsets.UTF_8;
-    private static final int PACKET_SIZE_BYTES = 1400;
+    /** Queue size used when none is given; the queue is preallocated, so it can't be unbounded. */
+    private static final int DEFAULT_QUEUE_SIZE = 1 << 16;
+    /** Encoded size of the queued messages beyond which new ones are dropped, unless configured otherwise. */
+    private static final long DEFAULT_QUEUE_MEMORY_BUDGET = 8L << 20;
     private static final StatsDClientErrorHandler NO_OP_HANDLER = e -> { /* No-op */ };
 
     private final String prefix;
-    private final DatagramChannel clientChannel;
+    /** Used by the consumer thread only. */
+    private final Transport transport;
     private final StatsDClientErrorHandler handler;
     private final String constantTagsRendered;
 
@@ -61,7 +71,21 @@ public class NonBlockingStatsDClient extends StringMessageStatsDClient {
         }
     });
 
-    private final BlockingQueue<String> queue;
+    private final MpscRing<String> queue;
+    private final long queueMemoryBudget;
+    /** How long a packet that isn't full waits for more messages, or 0 to send it as soon as the queue is empty. */
+    private final long lingerNanos;
+    /**
+     * The encoded bytes of the messages ever queued, added to by producers, and taken off the queue, only written
+     * by the consumer; only kept with a memory budget. Their difference is what is queued, without a counter all
+     * producers contend on.
+     */
+    private final LongAdder bytesQueued = new LongAdder();
+    private final AtomicLong bytesTaken = new AtomicLong();
+    private final OverflowPolicy overflowPolicy;
+    private final DropCounters drops = new DropCounters();
+    private final AtomicLong evictionRequests = new AtomicLong();
+    private final Telemetry telemetry = new Telemetry(drops);
 
     /**
      * Create a new StatsD client communicating with a StatsD instance on the
@@ -103,7 +127,8 @@ public class NonBlockingStatsDClient extends StringMessageStatsDClient {
      * @param port
      *     the port of the targeted StatsD server
      * @param queueSize
-     *     the maximum amount of unprocessed messages in the BlockingQueue.
+     *     the maximum amount of unprocessed messages in the queue, rounded up to a power of two;
+     *     {@link Integer#MAX_VALUE} stands for the default of 65536
      * @throws StatsDClientException
      *     if the client could not be started
      */
@@ -155,7 +180,8 @@ public class NonBlockingStatsDClient extends StringMessageStatsDClient {
      * @param constantTags
      *     tags to be added to all content sent
      * @param queueSize
-     *     the maximum amount of unprocessed messages in the BlockingQueue.
+     *     the maximum amount of unprocessed messages in the queue, rounded up to a power of two;
+     *     {@link Integer#MAX_VALUE} stands for the default of 65536
      * @throws StatsDClientException
      *     if the client could not be started
      */
@@ -214,7 +240,8 @@ public class NonBlockingStatsDClient extends StringMessageStatsDClient {
      * @param errorHandler
      *     handler to use when an exception occurs during usage, may be null to indicate noop
      * @param queueSize
-     *     the maximum amount of unprocessed messages in the BlockingQueue.
+     *     the maximum amount of unprocessed messages in the queue, rounded up to a power of two;
+     *     {@link Integer#MAX_VALUE} stands for the default of 65536
      * @throws StatsDClientException
      *     if the client could not be started
      */
@@ -243,12 +270,22 @@ public class NonBlockingStatsDClient extends StringMessageStatsDClient {
      * @param addressLookup
      *     yields the IP address and socket of the StatsD server
      * @param queueSize
-     *     the maximum amount of unprocessed messages in the BlockingQueue.
+     *     the maximum amount of unprocessed messages in the queue, rounded up to a power of two;
+     *     {@link Integer#MAX_VALUE} stands for the default of 65536
      * @throws StatsDClientException
      *     if the client could not be started
      */
     public NonBlockingStatsDClient(final String prefix, final int queueSize, String[] constantTags, final StatsDClientErrorHandler errorHandler,
                                    final Callable<InetSocketAddress> addressLookup) throws StatsDClientException {
+        this(prefix, queueSize, constantTags, errorHandler, DatagramTransport.udp(addressLookup, false, 0),
+                DEFAULT_QUEUE_MEMORY_BUDGET, OverflowPolicy.dropNewest(), 0);
+    }
+
+    private NonBlockingStatsDClient(final String prefix, final int queueSize, String[] constantTags,
+                                    final StatsDClientErrorHandler errorHandler, final Transport transport,
+                                    final long queueMemoryBudget, final OverflowPolicy overflowPolicy,
+                                    final long lingerNanos)
+            throws StatsDClientException {
         if((prefix != null) && (!prefix.isEmpty())) {
             this.prefix = String.format("%s.", prefix);
         } else {
@@ -272,14 +309,38 @@ public class NonBlockingStatsDClient extends StringMessageStatsDClient {
             constantTagsRendered = null;
         }
 
-        try {
-            clientChannel = DatagramChannel.open();
-        } catch (final Exception e) {
-            throw new StatsDClientException("Failed to start StatsD client", e);
+        this.transport = transport;
+        queue = new MpscRing<>(queueSize == Integer.MAX_VALUE ? DEFAULT_QUEUE_SIZE : Math.min(queueSize, 1 << 30),
+                queueMemoryBudget != Long.MAX_VALUE);
+        this.queueMemoryBudget = queueMemoryBudget;
+        this.lingerNanos = lingerNanos;
+        this.overflowPolicy = overflowPolicy;
+
+        executor.execute(new QueueConsumer());
+    }
+
+    private NonBlockingStatsDClient(final Builder builder) throws StatsDClientException {
+        this(builder.prefix, builder.queueSize, builder.constantTags, builder.errorHandler, builder.transport(),
+                builder.queueMemoryBudget, builder.overflowPolicy, builder.lingerNanos);
+        if (builder.aggregationFlushInterval > 0) {
+            startAggregation(builder.aggregationFlushInterval, builder.aggregationFlushUnit, handler);
         }
-        queue = new LinkedBlockingQueue<>(queueSize);
+        if (builder.packingWindow > 0) {
+            startPacking(builder.packingWindow, builder.packingUnit, transport.packetSize(), handler);
+        }
+        if (builder.telemetryInterval > 0) {
+            telemetry.start(this::send, constantTagsRendered,
+                    builder.clientId != null ? builder.clientId : Telemetry.defaultClientId(),
+                    () -> queue.size(), queueMemoryBudget == Long.MAX_VALUE ? null : this::queuedBytes,
+                    builder.telemetryInterval, builder.telemetryUnit, handler);
+        }
+    }
 
-        executor.execute(new QueueConsumer(addressLookup));
+    /**
+     * Returns a builder for clients that need options beyond those the constructors offer.
+     */
+    public static Builder builder() {
+        return new Builder();
     }
 
     /**
@@ -289,27 +350,119 @@ public class NonBlockingStatsDClient extends StringMessageStatsDClient {
     @Override
     public void close() {
         try {
+            stopAggregation();
+            telemetry.close();
             executor.shutdown();
+            // the consumer may be waiting for a lingering packet to be due
+            queue.wake();
             executor.awaitTermination(30, TimeUnit.SECONDS);
         }
         catch (final Exception e) {
             handler.handle(e);
         }
         finally {
-            if (clientChannel != null) {
-                try {
-                    clientChannel.close();
-                }
-                catch (final IOException e) {
-                    handler.handle(e);
-                }
+            try {
+                transport.close();
+            }
+            catch (final IOException e) {
+                handler.handle(e);
             }
         }
     }
 
     @Override
     protected void send(final String message) {
-        queue.offer(message);
+        // only a memory budget needs the size before the consumer encodes the message
+        final int length = (queueMemoryBudget == Long.MAX_VALUE) ? 0 : encodedLength(message);
+        if (overflowPolicy.samplesDown() && !overflowPolicy.admit(fill())) {
+            drops.record(message, DropCounters.Reason.SAMPLE_DOWN);
+            return;
+        }
+        long start = 0;
+        int attempt = 0;
+        for (; !offer(message, length); attempt++) {
+            if (attempt == 0) {
+                start = System.nanoTime();
+            }
+            if (!overflowPolicy.awaitRetry(attempt, start, evictionRequests)) {
+                drops.record(message, DropCounters.Reason.QUEUE_FULL);
+                return;
+            }
+        }
+        overflowPolicy.settled(attempt, evictionRequests);
+        telemetry.messagesQueued.add(1);
+    }
+
+    /**
+     * Returns the number of messages dropped so far because the queue was full, by kind of message:
+     * {@code counter}, {@code gauge}, {@code timer}, {@code histogram}, {@code set}, {@code event},
+     * {@code service_check} and {@code other}.
+     */
+    public Map<String, Long> getDroppedMessages() {
+        return drops.snapshot();
+    }
+
+    private boolean offer(final String message, final int length) {
+        if (!reserve(length)) {
+            return false;
+        }
+        if (!queue.offer(message, length)) {
+            release(length);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * How full the queue is, by message count or memory budget, whichever is closer to its limit.
+     */
+    private double fill() {
+        final double byCount = queue.size() / (double) queue.capacity();
+        if (queueMemoryBudget == Long.MAX_VALUE) {
+            return byCount;
+        }
+        return Math.max(byCount, queuedBytes() / (double) queueMemoryBudget);
+    }
+
+    /**
+     * Returns the encoded bytes of the messages queued; only an estimate while producers are active.
+     */
+    private long queuedBytes() {
+        return Math.max(0, bytesQueued.sum() - bytesTaken.get());
+    }
+
+    /**
+     * Accounts for a message about to be queued, unless that would take the queue over its memory budget.
+     * Producers racing each other can take the queue over the budget by the messages they are queueing.
+     */
+    private boolean reserve(final int length) {
+        if (queueMemoryBudget == Long.MAX_VALUE) {
+            return true;
+        }
+        if (queuedBytes() + length > queueMemoryBudget) {
+            return false;
+        }
+        bytesQueued.add(length);
+        return true;
+    }
+
+    /**
+     * Undoes {@link #reserve} for a message that couldn't be queued after all.
+     */
+    private void release(final int length) {
+        if (queueMemoryBudget != Long.MAX_VALUE) {
+            bytesQueued.add(-length);
+        }
+    }
+
+    /**
+     * Accounts for a message the consumer took off the queue, given its weight in the queue.
+     */
+    private void taken(final int length) {
+        if (length > 0) {
+            // only the consumer writes it
+            bytesTaken.lazySet(bytesTaken.get() + length);
+        }
     }
 
     @Override
@@ -323,62 +476,494 @@ public class NonBlockingStatsDClient extends StringMessageStatsDClient {
     }
 
     private class QueueConsumer implements Runnable {
-        private final ByteBuffer sendBuffer = ByteBuffer.allocate(PACKET_SIZE_BYTES);
-
-        private final Callable<InetSocketAddress> addressLookup;
-
-        QueueConsumer(final Callable<InetSocketAddress> addressLookup) {
-            this.addressLookup = addressLookup;
-        }
+        private final ByteBuffer sendBuffer = ByteBuffer.allocateDirect(transport.packetSize());
+        /** For messages too large for the send buffer, allocated once one comes along. */
+        private ByteBuffer oversizeBuffer;
+        /** When the packet being filled is due to be sent, if lingering. */
+        private long sendDeadline;
 
         @Override public void run() {
             while(!executor.isShutdown()) {
                 try {
-                    final String message = queue.poll(1, TimeUnit.SECONDS);
+                    final String message = queue.poll(pollNanos(), TimeUnit.NANOSECONDS);
                     if(null != message) {
-                        final InetSocketAddress address = addressLookup.call();
-                        final byte[] data = message.getBytes(MESSAGE_CHARSET);
-                        if(sendBuffer.remaining() < (data.length + 1)) {
-                            blockingSend(address);
-                        }
-                        if(sendBuffer.position() > 0) {
-                            sendBuffer.put( (byte) '\n');
-                        }
-                        sendBuffer.put(data);
-                        if(null == queue.peek()) {
-                            blockingSend(address);
-                        }
+                        drain(message);
+                    }
+                    if(sendBuffer.position() > 0 && (lingerNanos == 0 || System.nanoTime() - sendDeadline >= 0)) {
+                        blockingSend();
                     }
                 } catch (final Exception e) {
                     handler.handle(e);
                 }
             }
+            // send what was queued before close(), such as the final flush of aggregated metrics
+            final String message = queue.poll();
+            if(null != message) {
+                drain(message);
+            }
+            if(sendBuffer.position() > 0) {
+                try {
+                    blockingSend();
+                } catch (final Exception e) {
+                    handler.handle(e);
+                }
+            }
+        }
+
+        /**
+         * Returns how long to wait for the next message: until the packet being filled is due, or not long if the
+         * transport has data it couldn't send yet.
+         */
+        private long pollNanos() {
+            if(sendBuffer.position() > 0) {
+                return Math.max(0, sendDeadline - System.nanoTime());
+            }
+            return transport.flush() ? TimeUnit.SECONDS.toNanos(1) : TimeUnit.MILLISECONDS.toNanos(10);
+        }
+
+        /**
+         * Packs the message and everything queued behind it into as few packets as possible, sending the full
+         * ones. The last one is left for the caller to send once it is due.
+         */
+        private void drain(String message) {
+            do {
+                final int length = queue.weight();
+                taken(length);
+                if (OverflowPolicy.takeEviction(evictionRequests)) {
+                    // a producer asked for the oldest message to be dropped to make room for its own
+                    drops.record(message, DropCounters.Reason.EVICTED);
+                    continue;
+                }
+                try {
+                    // a weighted queue carries the length the producer worked out
+                    append(message, length > 0 ? length : encodedLength(message));
+                } catch (final Exception e) {
+                    handler.handle(e);
+                }
+            } while((message = queue.poll()) != null);
+        }
+
+        private void append(final String message, final int length) throws Exception {
+            if(length > sendBuffer.capacity()) {
+                sendOversized(message, length);
+                return;
+            }
+            if(sendBuffer.position() > 0 && sendBuffer.remaining() < (length + 1)) {
+                blockingSend();
+            }
+            if(sendBuffer.position() > 0) {
+                sendBuffer.put( (byte) '\n');
+            } else if(lingerNanos > 0) {
+                sendDeadline = System.nanoTime() + lingerNanos;
+            }
+            encode(message, sendBuffer);
+        }
+
+        /**
+         * Sends a message too large for a packet in a larger packet of its own, so it neither gets cut short nor
+         * holds up the packet being filled, or drops it if it is too large even for that.
+         */
+        private void sendOversized(final String message, final int length) throws Exception {
+            final int maxPacketSize = transport.maxPacketSize();
+            if(length > maxPacketSize) {
+                drops.record(message, DropCounters.Reason.TOO_LARGE);
+                return;
+            }
+            if(oversizeBuffer == null || oversizeBuffer.capacity() < length) {
+                oversizeBuffer = ByteBuffer.allocateDirect(Math.min(maxPacketSize, Integer.highestOneBit(length) << 1));
+            }
+            encode(message, oversizeBuffer);
+            telemetry.packetsOversized.add(1);
+            telemetry.send(transport, oversizeBuffer);
+        }
+
+        private void blockingSend() throws Exception {
+            telemetry.send(transport, sendBuffer);
+        }
+    }
+
+    /**
+     * Builds a {@link NonBlockingStatsDClient}. Where to send metrics must be given: a host name and port, an
+     * address lookup or a Unix socket for datagrams, a TCP address or Unix stream socket, or a {@link Transport};
+     * everything else is optional.
+     */
+    public static class Builder {
+        private String prefix;
+        private String hostname;
+        private int port;
+        private Callable<InetSocketAddress> addressLookup;
+        private String unixSocketPath;
+        private boolean connectedSocket;
+        private int maxPacketSize;
+        private boolean autoPacketSize;
+        private long addressTtlNanos = AddressResolver.DEFAULT_TTL_NANOS;
+        private String tcpHostname;
+        private int tcpPort;
+        private String unixStreamSocketPath;
+        private int streamBufferSize = StreamTransport.DEFAULT_BUFFER_SIZE;
+        private Transport transport;
+        private int queueSize = Integer.MAX_VALUE;
+        private long queueMemoryBudget = DEFAULT_QUEUE_MEMORY_BUDGET;
+        private OverflowPolicy overflowPolicy = OverflowPolicy.dropNewest();
+        private long lingerNanos;
+        private long telemetryInterval;
+        private TimeUnit telemetryUnit;
+        private String clientId;
+        private String[] constantTags;
+        private StatsDClientErrorHandler errorHandler;
+        private long aggregationFlushInterval;
+        private TimeUnit aggregationFlushUnit;
+        private long packingWindow;
+        private TimeUnit packingUnit;
+
+        private Builder() {}
+
+        /**
+         * @param prefix
+         *     the prefix to apply to keys sent via this client
+         */
+        public Builder withPrefix(final String prefix) {
+            this.prefix = prefix;
+            return this;
+        }
+
+        /**
+         * @param hostname
+         *     the host name of the targeted StatsD server, resolved when the client is built and again every minute
+         *     in the background (see {@link #withAddressTtl})
+         * @param port
+         *     the port of the targeted StatsD server
+         */
+        public Builder withAddress(final String hostname, final int port) {
+            this.hostname = hostname;
+            this.port = port;
+            return this;
+        }
+
+        /**
+         * @param ttl
+         *     how long an address resolved from the host name given to {@link #withAddress} is used before the
+         *     host name is resolved again, in the background; Default: 1 minute
+         * @param unit
+         *     the unit of the time to live
+         */
+        public Builder withAddressTtl(final long ttl, final TimeUnit unit) {
+            if (ttl <= 0) {
+                throw new IllegalArgumentException("address time to live must be positive");
+            }
+            this.addressTtlNanos = unit.toNanos(ttl);
+            return this;
+        }
+
+        /**
+         * @param addressLookup
+         *     yields the IP address and socket of the StatsD server; takes precedence over {@link #withAddress}
+         */
+        public Builder withAddressLookup(final Callable<InetSocketAddress> addressLookup) {
+            this.addressLookup = addressLookup;
+            return this;
+        }
+
+        /**
+         * Sends datagrams to a Unix domain socket instead of UDP, in packets of up to 8 KiB rather than 1400 bytes.
+         * While the socket's buffer is full sends block, up to a second, so the queue fills up and the
+         * {@link OverflowPolicy} applies instead of packets getting lost. Takes precedence over
+         * {@link #withAddress} and {@link #withAddressLookup}.
+         *
+         * @param path
+         *     the path of the socket the StatsD server listens on, e.g. {@code /var/run/datadog/dsd.socket}
+         */
+        public Builder withUnixSocket(final String path) {
+            this.unixSocketPath = path;
+            return this;
+        }
+
+        /**
+         * Connects the UDP socket to the StatsD server and writes packets to it rather than sending each one to
+         * the address. This is cheaper per packet, and ICMP port unreachable errors from the server's host are
+         * passed to the error handler. The address is still looked up for every packet and the socket connected
+         * again when it changes. Doesn't apply to Unix domain sockets; Default: false
+         */
+        public Builder withConnectedSocket(final boolean connectedSocket) {
+            this.connectedSocket = connectedSocket;
+            return this;
+        }
+
+        /**
+         * Packs metrics into datagrams of up to the given size instead of 1400 bytes for UDP and 8 KiB for Unix
+         * domain sockets. Larger packets mean fewer system calls and packets per second, and fit larger messages,
+         * but the StatsD server must read datagrams that large and, over a network, UDP packets larger than the
+         * path MTU are fragmented. Takes precedence over {@link #withAutoPacketSize}; doesn't apply to stream
+         * sockets or a given {@link Transport}.
+         *
+         * @param bytes
+         *     the maximum size of a datagram, at most 65507 for UDP and 65536 for Unix domain sockets
+         */
+        public Builder withMaxPacketSize(final int bytes) {
+            if (bytes <= 0) {
+                throw new IllegalArgumentException("max packet size must be positive");
+            }
+            this.maxPacketSize = bytes;
+            return this;
+        }
+
+        /**
+         * Sizes datagrams after the path to the StatsD server when the client is built: UDP packets to an address
+         * of this host, such as a local agent, fill the MTU of its interface, 64 KiB on a typical loopback
+         * interface, while packets to other hosts stay at 1400 bytes. Datagrams to a Unix domain socket take as
+         * much as the socket's send buffer does, up to 64 KiB. The StatsD server must read datagrams that large,
+         * e.g. with the Datadog agent's {@code dogstatsd_buffer_size}. Default: false
+         */
+        public Builder withAutoPacketSize(final boolean autoPacketSize) {
+            this.autoPacketSize = autoPacketSize;
+            return this;
+        }
+
+        /**
+         * Connects to the StatsD server over TCP instead of sending UDP datagrams, so metrics aren't lost on the way
+         * as long as the connection holds. Writes never block: what the socket doesn't take right away is
+         * buffered (see {@link #withStreamBufferSize}), and when the connection fails the client reconnects with
+         * exponential backoff, up to 10 seconds apart, resolving the host name again. Takes precedence over the
+         * datagram options.
+         *
+         * @param hostname
+         *     the host name of the targeted StatsD server
+         * @param port
+         *     the TCP port of the targeted StatsD server
+         */
+        public Builder withTcpAddress(final String hostname, final int port) {
+            this.tcpHostname = hostname;
+            this.tcpPort = port;
+            return this;
+        }
+
+        /**
+         * Like {@link #withTcpAddress} but connects to a Unix domain stream socket. Takes precedence over
+         * {@link #withTcpAddress} and the datagram options.
+         *
+         * @param path
+         *     the path of the stream socket the StatsD server listens on
+         */
+        public Builder withUnixStreamSocket(final String path) {
+            this.unixStreamSocketPath = path;
+            return this;
+        }
+
+        /**
+         * @param bytes
+         *     how much data to buffer while a stream connection is slow or down, beyond which packets are dropped;
+         *     only applies with {@link #withTcpAddress} or {@link #withUnixStreamSocket}; Default: 1 MiB
+         */
+        public Builder withStreamBufferSize(final int bytes) {
+            if (bytes <= StreamTransport.PACKET_SIZE_BYTES) {
+                throw new IllegalArgumentException("stream buffer size must be larger than "
+                        + StreamTransport.PACKET_SIZE_BYTES);
+            }
+            this.streamBufferSize = bytes;
+            return this;
+        }
+
+        /**
+         * Sends packets through the given transport instead of a socket of the client's own. Takes precedence over
+         * all the address options. The client closes the transport when it is closed.
+         */
+        public Builder withTransport(final Transport transport) {
+            this.transport = transport;
+            return this;
+        }
+
+        /**
+         * @param queueSize
+         *     the maximum amount of unprocessed messages in the queue, rounded up to a power of two;
+         *     Default: 65536
+         */
+        public Builder withQueueSize(final int queueSize) {
+            this.queueSize = queueSize;
+            return this;
+        }
+
+        /**
+         * Bounds the queue by the total size of the messages in it, so a stalled agent or network can't make it
+         * hold more than that much metrics, however large the messages. Messages that would exceed the budget
+         * are dropped, though threads sending at the same time can each take the queue past the budget by a
+         * message. The heap used is about twice the budget, as queued messages are kept as strings.
+         *
+         * @param bytes
+         *     the maximum UTF-8 encoded size of all unprocessed messages in the queue, or {@link Long#MAX_VALUE}
+         *     to bound it by {@link #withQueueSize} only; Default: 8 MiB
+         */
+        public Builder withQueueMemoryBudget(final long bytes) {
+            if (bytes <= 0) {
+                throw new IllegalArgumentException("queue memory budget must be positive");
+            }
+            this.queueMemoryBudget = bytes;
+            return this;
+        }
+
+        /**
+         * Lets a packet that isn't full wait for more messages, up to the given time after its first message, rather
+         * than sending it as soon as the queue is empty. At moderate rates this sends fewer, fuller packets, and
+         * so fewer system calls, at the cost of messages waiting up to that long.
+         *
+         * @param linger
+         *     how long the first message of a packet may wait for the packet to fill up; Default: 0
+         * @param unit
+         *     the unit of the linger time
+         */
+        public Builder withLinger(final long linger, final TimeUnit unit) {
+            if (linger < 0) {
+                throw new IllegalArgumentException("linger must not be negative");
+            }
+            this.lingerNanos = unit.toNanos(linger);
+            return this;
+        }
+
+        /**
+         * @param overflowPolicy
+         *     what to do with messages when the queue is full; Default: {@link OverflowPolicy#dropNewest()}
+         */
+        public Builder withOverflowPolicy(final OverflowPolicy overflowPolicy) {
+            if (overflowPolicy == null) {
+                throw new IllegalArgumentException("overflow policy must not be null");
+            }
+            this.overflowPolicy = overflowPolicy;
+            return this;
+        }
+
+        /**
+         * @param constantTags
+         *     tags to be added to all content sent
+         */
+        public Builder withConstantTags(final String... constantTags) {
+            this.constantTags = constantTags;
+            return this;
+        }
+
+        /**
+         * @param errorHandler
+         *     handler to use when an exception occurs during usage, may be null to indicate noop
+         */
+        public Builder withErrorHandler(final StatsDClientErrorHandler errorHandler) {
+            this.errorHandler = errorHandler;
+            return this;
+        }
+
+        /**
+         * Turns on client-side aggregation: counts, gauges and sets without a sample rate are kept per aspect and
+         * tags and sent once per flush interval rather than once per call. Counts are summed, gauges keep their
+         * last value and set members are sent once per interval. Whatever has been aggregated is also sent
+         * when the client is closed. Default: off
+         *
+         * @param flushInterval
+         *     how often aggregated values are sent, must be positive
+         * @param unit
+         *     the unit of the flush interval
+         */
+        public Builder withAggregation(final long flushInterval, final TimeUnit unit) {
+            if (flushInterval <= 0) {
+                throw new IllegalArgumentException("aggregation flush interval must be positive");
+            }
+            this.aggregationFlushInterval = flushInterval;
+            this.aggregationFlushUnit = unit;
+            return this;
+        }
+
+        /**
+         * Turns on packing: histogram and timer values without a sample rate are buffered per aspect and tags
+         * and sent as lines holding several values, e.g. {@code name:1:2:3|h}, once per window or whenever a
+         * line is full. This needs an agent that speaks dogstatsd protocol 1.1 (Datadog Agent 6.25 / 7.25 and
+         * later). Default: off
+         *
+         * @param window
+         *     how long values are buffered at most, must be positive
+         * @param unit
+         *     the unit of the window
+         */
+        public Builder withSamplePacking(final long window, final TimeUnit unit) {
+            if (window <= 0) {
+                throw new IllegalArgumentException("packing window must be positive");
+            }
+            this.packingWindow = window;
+            this.packingUnit = unit;
+            return this;
+        }
+
+        /**
+         * Turns on self-telemetry: the client periodically sends metrics about itself, such as the number of
+         * messages queued and dropped, packets and bytes sent and the queue size, named
+         * {@code statsd.client.*} without the prefix. Default: off
+         *
+         * @param interval
+         *     how often the client reports, must be positive
+         * @param unit
+         *     the unit of the interval
+         */
+        public Builder withTelemetry(final long interval, final TimeUnit unit) {
+            if (interval <= 0) {
+                throw new IllegalArgumentException("telemetry interval must be positive");
+            }
+            this.telemetryInterval = interval;
+            this.telemetryUnit = unit;
+            return this;
+        }
+
+        /**
+         * @param clientId
+         *     the value of the {@code client_id} tag on the client's telemetry; Default: a number unique within
+         *     the JVM
+         */
+        public Builder withClientId(final String clientId) {
+            this.clientId = clientId;
+            return this;
+        }
+
+        public NonBlockingStatsDClient build() throws StatsDClientException {
+            return new NonBlockingStatsDClient(this);
+        }
+
+        private Transport transport() throws StatsDClientException {
+            if (transport != null) {
+                return transport;
+            }
+            final StatsDClientErrorHandler streamErrorHandler = errorHandler != null ? errorHandler : NO_OP_HANDLER;
+            if (unixStreamSocketPath != null) {
+                return new StreamTransport(StreamTransport.unixSocket(unixStreamSocketPath), streamBufferSize,
+                        streamErrorHandler);
+            }
+            if (tcpHostname != null) {
+                return new StreamTransport(volatileAddressResolution(tcpHostname, tcpPort), streamBufferSize,
+                        streamErrorHandler);
+            }
+            if (unixSocketPath != null) {
+                return DatagramTransport.unixSocket(unixSocketPath, packetSize());
+            }
+            if (addressLookup != null) {
+                return DatagramTransport.udp(addressLookup, connectedSocket, packetSize());
+            }
+            if (hostname == null) {
+                throw new IllegalStateException("an address, an address lookup, a socket or a transport must be set");
+            }
+            final AddressResolver address;
+            try {
+                address = AddressResolver.start(hostname, port, addressTtlNanos);
+            } catch (final UnknownHostException e) {
+                throw new StatsDClientException("Failed to lookup StatsD host", e);
+            }
+            return DatagramTransport.udp(address, connectedSocket, packetSize());
         }
 
-        private void blockingSend(final InetSocketAddress address) throws IOException {
-            final int sizeOfBuffer = sendBuffer.position();
-            sendBuffer.flip();
-
-            final int sentBytes = clientChannel.send(sendBuffer, address);
-            sendBuffer.limit(sendBuffer.capacity());
-            sendBuffer.rewind();
-
-            if (sizeOfBuffer != sentBytes) {
-                handler.handle(
-                        new IOException(
-                            String.format(
-                                "Could not send entirely stat %s to host %s:%d. Only sent %d bytes out of %d bytes",
-                                sendBuffer.toString(),
-                                address.getHostName(),
-                                address.getPort(),
-                                sentBytes,
-                                sizeOfBuffer)));
+        private int packetSize() {
+            if (maxPacketSize > 0) {
+                return maxPacketSize;
             }
+            return autoPacketSize ? DatagramTransport.AUTO_PACKET_SIZE : 0;
         }
     }
 
     /**
-     * Create dynamic lookup for the given host name and port.
+     * Create dynamic lookup for the given host name and port. The host name is resolved on every call, which is on
+     * the client's sender thread for every packet; clients built with {@link Builder#withAddress} resolve it in the
+     * background instead.
      *
      * @param hostname the host name of the targeted StatsD server
      * @param port     the port of the targeted StatsD server
@@ -0,0 +1,163 @@
+package com.timgroup.statsd;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * What an asynchronous client does with a message when its queue is full. Whatever the policy, messages that
+ * end up dropped are counted, see {@link NonBlockingStatsDClient#getDroppedMessages()} and
+ * {@link DisruptorStatsDClient#getDroppedMessages()}, rather than reported to the error handler one by one.
+ */
+public final class OverflowPolicy {
+    enum Kind {
+        DROP_NEWEST,
+        DROP_OLDEST,
+        BLOCK,
+        SAMPLE_DOWN
+    }
+
+    /** How many times a producer yields for the consumer to evict a message before dropping its own. */
+    private static final int EVICTION_ATTEMPTS = 16;
+
+    /** How long a blocked producer parks between attempts. */
+    private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    /** Fill ratio from which {@link #sampleDown()} starts shedding messages. */
+    private static final double SAMPLE_DOWN_THRESHOLD = 0.5;
+
+    private static final OverflowPolicy DROP_NEWEST = new OverflowPolicy(Kind.DROP_NEWEST, 0);
+    private static final OverflowPolicy DROP_OLDEST = new OverflowPolicy(Kind.DROP_OLDEST, 0);
+    private static final OverflowPolicy SAMPLE_DOWN = new OverflowPolicy(Kind.SAMPLE_DOWN, 0);
+
+    private final Kind kind;
+    private final long timeoutNanos;
+
+    private OverflowPolicy(final Kind kind, final long timeoutNanos) {
+        this.kind = kind;
+        this.timeoutNanos = timeoutNanos;
+    }
+
+    /**
+     * Drops the message that doesn't fit. This is the default.
+     */
+    public static OverflowPolicy dropNewest() {
+        return DROP_NEWEST;
+    }
+
+    /**
+     * Makes room for the message by dropping the oldest one in the queue, so what gets through is the most
+     * recent data. The oldest message is dropped by the consumer thread when it next takes one; should it be
+     * busy sending for longer than a few yields, the new message is dropped instead.
+     */
+    public static OverflowPolicy dropOldest() {
+        return DROP_OLDEST;
+    }
+
+    /**
+     * Makes the calling thread wait for room in the queue, up to the given time, before dropping the message.
+     * This trades the client's non-blocking guarantee for fewer drops.
+     */
+    public static OverflowPolicy block(final long timeout, final TimeUnit unit) {
+        if (timeout <= 0) {
+            throw new IllegalArgumentException("timeout must be positive");
+        }
+        return new OverflowPolicy(Kind.BLOCK, unit.toNanos(timeout));
+    }
+
+    /**
+     * Sheds load before the queue is full: once it is half full, messages are dropped at random with a
+     * probability that grows with the fill level, reaching 1 when it is full. Counts are not scaled up for
+     * the dropped messages.
+     */
+    public static OverflowPolicy sampleDown() {
+        return SAMPLE_DOWN;
+    }
+
+    /**
+     * Whether messages may be dropped before the queue is full, in which case callers must check
+     * {@link #admit} for every message.
+     */
+    boolean samplesDown() {
+        return kind == Kind.SAMPLE_DOWN;
+    }
+
+    /**
+     * Decides whether a message is queued given how full the queue is, between 0 and 1.
+     */
+    boolean admit(final double fill) {
+        if (fill <= SAMPLE_DOWN_THRESHOLD) {
+            return true;
+        }
+        final double dropProbability = (fill - SAMPLE_DOWN_THRESHOLD) / (1 - SAMPLE_DOWN_THRESHOLD);
+        return ThreadLocalRandom.current().nextDouble() >= dropProbability;
+    }
+
+    /**
+     * Called by a producer after its {@code attempt}th attempt (counting from 0) to queue a message failed,
+     * this waits as the policy requires before the next attempt.
+     *
+     * @param startNanos
+     *     {@link System#nanoTime()} when the first attempt failed
+     * @param evictionRequests
+     *     the number of messages the consumer is asked to drop from the head of the queue
+     * @return false if the message should be dropped instead
+     */
+    boolean awaitRetry(final int attempt, final long startNanos, final AtomicLong evictionRequests) {
+        switch (kind) {
+            case DROP_OLDEST:
+                if (attempt == 0) {
+                    evictionRequests.incrementAndGet();
+                }
+                if (attempt >= EVICTION_ATTEMPTS) {
+                    // the consumer is busy, withdraw the request so it doesn't drop a message later for nothing
+                    takeEviction(evictionRequests);
+                    return false;
+                }
+                Thread.yield();
+                return true;
+            case BLOCK:
+                final long remaining = timeoutNanos - (System.nanoTime() - startNanos);
+                if (remaining <= 0) {
+                    return false;
+                }
+                LockSupport.parkNanos(Math.min(remaining, BLOCK_PARK_NANOS));
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Called by a producer once its message was queued, after {@code attempts} failed attempts. A retry can
+     * succeed because the consumer took a message as usual rather than evicting one, so this withdraws the
+     * eviction request the consumer hasn't claimed yet, or it would later drop an unrelated message.
+     */
+    void settled(final int attempts, final AtomicLong evictionRequests) {
+        if (kind == Kind.DROP_OLDEST && attempts > 0) {
+            takeEviction(evictionRequests);
+        }
+    }
+
+    /**
+     * Called by the consumer for every message it takes, this claims one of the pending eviction requests.
+     *
+     * @return true if the message should be dropped
+     */
+    static boolean takeEviction(final AtomicLong evictionRequests) {
+        long requests;
+        do {
+            requests = evictionRequests.get();
+            if (requests <= 0) {
+                return false;
+            }
+        } while (!evictionRequests.compareAndSet(requests, requests - 1));
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return kind == Kind.BLOCK ? "BLOCK(" + timeoutNanos + "ns)" : kind.name();
+    }
+}
@@ -0,0 +1,17 @@
+package com.timgroup.statsd;
+
+/**
+ * A set bound to a fixed aspect and set of tags, obtained from {@link StatsDClient#set}.
+ *
+ * <p>These methods are non-blocking and are guaranteed not to throw an exception.</p>
+ */
+public interface SetMetric {
+
+    /**
+     * Records a value in the set.
+     *
+     * @param value
+     *     the value to track
+     */
+    void record(String value);
+}
@@ -433,4 +433,68 @@ public interface StatsDClient extends Closeable {
      */
     void recordSetValue(String aspect, String value, String... tags);
 
+    /**
+     * Returns a handle on the counter with the given aspect and tags, which can be kept and reused to
+     * record values without passing the aspect and tags each time.
+     *
+     * <p>Implementations may render the constant parts of the metric up front, so a reused handle is
+     * typically cheaper than the equivalent {@link #count(String, long, String[])} calls.</p>
+     *
+     * @param aspect
+     *     the name of the counter
+     * @param tags
+     *     array of tags to be added to the data
+     */
+    default Counter counter(String aspect, String... tags) {
+        return DelegatingMetrics.counter(this, aspect, tags);
+    }
+
+    /**
+     * Returns a handle on the gauge with the given aspect and tags, see {@link #counter(String, String[])}.
+     *
+     * @param aspect
+     *     the name of the gauge
+     * @param tags
+     *     array of tags to be added to the data
+     */
+    default Gauge gauge(String aspect, String... tags) {
+        return DelegatingMetrics.gauge(this, aspect, tags);
+    }
+
+    /**
+     * Returns a handle on the timer with the given aspect and tags, see {@link #counter(String, String[])}.
+     *
+     * @param aspect
+     *     the name of the timed operation
+     * @param tags
+     *     array of tags to be added to the data
+     */
+    default Timer timer(String aspect, String... tags) {
+        return DelegatingMetrics.timer(this, aspect, tags);
+    }
+
+    /**
+     * Returns a handle on the histogram with the given aspect and tags, see {@link #counter(String, String[])}.
+     *
+     * @param aspect
+     *     the name of the histogram
+     * @param tags
+     *     array of tags to be added to the data
+     */
+    default Histogram histogram(String aspect, String... tags) {
+        return DelegatingMetrics.histogram(this, aspect, tags);
+    }
+
+    /**
+     * Returns a handle on the set with the given aspect and tags, see {@link #counter(String, String[])}.
+     *
+     * @param aspect
+     *     the name of the set
+     * @param tags
+     *     array of tags to be added to the data
+     */
+    default SetMetric set(String aspect, String... tags) {
+        return DelegatingMetrics.set(this, aspect, tags);
+    }
+
 }
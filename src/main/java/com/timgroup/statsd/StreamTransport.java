@@ -0,0 +1,220 @@
+package com.timgroup.statsd;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes packets to a TCP or Unix domain stream socket, for metrics that must not be lost the way UDP datagrams can
+ * be. Each packet is written as newline-terminated lines, so the receiver sees the same lines whatever way the
+ * stream splits them.
+ *
+ * <p>Writes never block the sender thread: what the socket doesn't take right away is kept in a bounded buffer and
+ * written on the next call. When the connection fails, the buffer holds the data until the sender reconnects,
+ * with exponential backoff between attempts, and a line cut short by the failure is written again in full on the
+ * new connection. Data only gets dropped when the buffer is full.</p>
+ *
+ */
+final class StreamTransport implements Transport {
+    /**
+     * Streams have no packet size limit, but a packet is still assembled in a buffer before it is written.
+     */
+    static final int PACKET_SIZE_BYTES = 8192;
+
+    /** Data kept for the socket while it is slow or disconnected, unless configured otherwise. */
+    static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+
+    private static final long MIN_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long MAX_BACKOFF_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private static final long CLOSE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final Callable<? extends SocketAddress> addressLookup;
+    private final StatsDClientErrorHandler errorHandler;
+    /** Data not written yet, from 0 to its position. */
+    private final ByteBuffer pending;
+    /** How much of the first line in {@link #pending} went out on the current connection. */
+    private int partiallyWritten;
+    private SocketChannel channel;
+    private long backoffNanos = MIN_BACKOFF_NANOS;
+    private long nextAttemptNanos = System.nanoTime();
+
+    /**
+     * @param addressLookup
+     *     yields the address to connect to, called again for every reconnection
+     * @param bufferSize
+     *     how many bytes to keep while the socket is slow or disconnected
+     * @param errorHandler
+     *     told about failures to connect and write; they don't lose data, unlike the exceptions thrown by
+     *     {@link #send}
+     */
+    StreamTransport(final Callable<? extends SocketAddress> addressLookup, final int bufferSize,
+                 final StatsDClientErrorHandler errorHandler) {
+        if (bufferSize <= PACKET_SIZE_BYTES) {
+            throw new IllegalArgumentException("stream buffer size must be larger than " + PACKET_SIZE_BYTES);
+        }
+        this.addressLookup = addressLookup;
+        this.errorHandler = errorHandler;
+        this.pending = ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    /**
+     * Returns an address lookup for the Unix domain stream socket at the given path.
+     */
+    static Callable<SocketAddress> unixSocket(final String path) {
+        final SocketAddress address = UnixStreams.address(path);
+        return () -> address;
+    }
+
+    @Override
+    public int packetSize() {
+        return PACKET_SIZE_BYTES;
+    }
+
+    /**
+     * Returns what the buffer holds besides the newline, as longer lines could never be written.
+     */
+    @Override
+    public int maxPacketSize() {
+        return pending.capacity() - 1;
+    }
+
+    /**
+     * Writes the packet, from its position to its limit, or keeps it to write later.
+     *
+     * @throws IOException
+     *     if the packet was dropped because the buffer is full
+     */
+    @Override
+    public void send(final ByteBuffer packet) throws IOException {
+        final int length = packet.remaining() + 1;
+        if (pending.remaining() < length) {
+            flush();
+        }
+        if (pending.remaining() < length) {
+            throw new IOException(String.format(
+                    "Dropped %d bytes for %s: %d bytes are waiting for the socket", length, describe(),
+                    pending.position()));
+        }
+        pending.put(packet).put((byte) '\n');
+        flush();
+    }
+
+    @Override
+    public boolean isBuffered() {
+        return true;
+    }
+
+    /**
+     * Writes as much of the buffered data as the socket takes without blocking, connecting first if needed.
+     *
+     * @return true if nothing is left to write
+     */
+    @Override
+    public boolean flush() {
+        if (pending.position() == 0) {
+            return true;
+        }
+        if (!connect()) {
+            return false;
+        }
+        pending.flip();
+        pending.position(partiallyWritten);
+        try {
+            channel.write(pending);
+        } catch (final IOException e) {
+            pending.position(0);
+            pending.compact();
+            disconnect(e);
+            return false;
+        }
+        // drop the lines written in full; keep a line written in part until the rest goes out
+        final int written = pending.position();
+        int lineEnd = written;
+        while (lineEnd > 0 && pending.get(lineEnd - 1) != '\n') {
+            lineEnd--;
+        }
+        partiallyWritten = written - lineEnd;
+        pending.position(lineEnd);
+        pending.compact();
+        return pending.position() == 0;
+    }
+
+    private boolean connect() {
+        try {
+            if (channel == null) {
+                if (System.nanoTime() - nextAttemptNanos < 0) {
+                    return false;
+                }
+                final SocketAddress address = addressLookup.call();
+                if (address instanceof InetSocketAddress) {
+                    channel = SocketChannel.open();
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                } else {
+                    // a Unix socket, see unixSocket()
+                    channel = UnixStreams.open();
+                }
+                channel.configureBlocking(false);
+                if (!channel.connect(address)) {
+                    return false;
+                }
+            } else if (channel.isConnectionPending() && !channel.finishConnect()) {
+                return false;
+            }
+        } catch (final Exception e) {
+            disconnect(e);
+            return false;
+        }
+        backoffNanos = MIN_BACKOFF_NANOS;
+        return true;
+    }
+
+    private void disconnect(final Exception cause) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (final IOException ignored) {
+                // the connection is being dropped anyway
+            }
+            channel = null;
+        }
+        partiallyWritten = 0;
+        nextAttemptNanos = System.nanoTime() + backoffNanos;
+        errorHandler.handle(new IOException(String.format(
+                "Connection to %s failed, retrying in %d ms with %d bytes waiting", describe(),
+                TimeUnit.NANOSECONDS.toMillis(backoffNanos), pending.position()), cause));
+        backoffNanos = Math.min(backoffNanos * 2, MAX_BACKOFF_NANOS);
+    }
+
+    private String describe() {
+        try {
+            return String.valueOf(addressLookup.call());
+        } catch (final Exception e) {
+            return "the StatsD server";
+        }
+    }
+
+    /**
+     * Gives the buffered data a second to go out, then closes the connection.
+     */
+    @Override
+    public void close() throws IOException {
+        final long deadline = System.nanoTime() + CLOSE_TIMEOUT_NANOS;
+        while (!flush() && System.nanoTime() - deadline < 0) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+        if (pending.position() > 0) {
+            throw new IOException(String.format(
+                    "Dropped %d bytes for %s on close", pending.position(), describe()));
+        }
+    }
+}
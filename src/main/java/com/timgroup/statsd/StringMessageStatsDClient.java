@@ -1,11 +1,8 @@
 package com.timgroup.statsd;
 
-import java.text.DecimalFormat;
-import java.text.DecimalFormatSymbols;
-import java.text.NumberFormat;
-import java.util.*;
+import java.nio.ByteBuffer;
 import java.util.concurrent.ThreadLocalRandom;
-import java.util.stream.Collectors;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Abstract implementation of {@link StatsDClient} that requires a minimal set of
@@ -15,6 +12,7 @@ import java.util.stream.Collectors;
  *     <li>{@link #send(String)}</li>
  *     <li>{@link #getPrefix()}</li>
  *     <li>{@link #getConstantTagsRendered()} (optional)</li>
+ *     <li>{@link #sendMessage(CharSequence)} (optional)</li>
  * </ul>
  *
  * Implementation classes should typically insert the message into a queue and have a
@@ -23,41 +21,30 @@ import java.util.stream.Collectors;
  */
 public abstract class StringMessageStatsDClient implements StatsDClient {
     /**
-     * Because NumberFormat is not thread-safe we cannot share instances across threads. Use a ThreadLocal to
-     * create one pre thread as this seems to offer a significant performance improvement over creating one per-thread:
-     * http://stackoverflow.com/a/1285297/2648
-     * https://github.com/indeedeng/java-dogstatsd-client/issues/4
+     * Set by implementations that support client-side aggregation, see {@link #startAggregation}.
      */
-    private static final ThreadLocal<NumberFormat> NUMBER_FORMATTERS = ThreadLocal.withInitial(() -> {
-        // Always create the formatter for the US locale in order to avoid this bug:
-        // https://github.com/indeedeng/java-dogstatsd-client/issues/3
-        NumberFormat numberFormatter = NumberFormat.getInstance(Locale.US);
-        numberFormatter.setGroupingUsed(false);
-        numberFormatter.setMaximumFractionDigits(6);
-        configureFormatter(numberFormatter);
-        return numberFormatter;
-    });
-
-    private static final ThreadLocal<NumberFormat> SAMPLE_RATE_FORMATTERS = ThreadLocal.withInitial(() -> {
-        final NumberFormat numberFormatter = NumberFormat.getInstance(Locale.US);
-        numberFormatter.setGroupingUsed(false);
-        numberFormatter.setMinimumFractionDigits(6);
-        configureFormatter(numberFormatter);
-        return numberFormatter;
-    });
-
-    private static void configureFormatter(NumberFormat numberFormatter) {
-        // we need to specify a value for Double.NaN that is recognized by dogStatsD
-        if (numberFormatter instanceof DecimalFormat) {
-            final DecimalFormat decimalFormat = (DecimalFormat) numberFormatter;
-            final DecimalFormatSymbols symbols = decimalFormat.getDecimalFormatSymbols();
-            symbols.setNaN("NaN");
-            decimalFormat.setDecimalFormatSymbols(symbols);
-        }
-    }
+    private Aggregator aggregator;
+
+    /**
+     * Set by implementations that support packing histogram and timer samples, see {@link #startPacking}.
+     */
+    private Aggregator packer;
 
     protected abstract void send(final String message);
 
+    /**
+     * Sends a rendered message. The characters are only valid until this method returns, as they are held in
+     * a buffer that is reused for the next message.
+     *
+     * <p>The default implementation passes a copy to {@link #send(String)}. Implementations that write messages
+     * into a byte buffer themselves can override it and encode the characters straight into that buffer with
+     * {@link #encodedLength(CharSequence)} and {@link #encode(CharSequence, ByteBuffer)}, skipping the String and
+     * the byte array that {@link String#getBytes} would allocate.</p>
+     */
+    protected void sendMessage(final CharSequence message) {
+        send(message.toString());
+    }
+
     /**
      * Defines tags that should always be included with the metrics sent. Defaults to null for none.
      */
@@ -71,16 +58,13 @@ public abstract class StringMessageStatsDClient implements StatsDClient {
      */
     public abstract String getPrefix();
 
-    /**
-     * Generate a suffix conveying the given tag list to the client
-     */
-    private String tagString(final String[] tags) {
-        return tagString(tags, getConstantTagsRendered());
-    }
 
     @Override
     public void count(String aspect, long delta, String... tags) {
-        send(String.format("%s%s:%d|c%s", getPrefix(), aspect, delta, tagString(tags)));
+        if (aggregator != null && aggregator.count(aspect, delta, tags)) {
+            return;
+        }
+        sendMetric(MetricType.COUNTER, aspect, delta, MessageEncoder.NO_SAMPLE_RATE, tags);
     }
 
     @Override
@@ -88,14 +72,15 @@ public abstract class StringMessageStatsDClient implements StatsDClient {
         if (isUnsampledEvent(sampleRate)) {
             return;
         }
-        send(String.format("%s%s:%d|c|@%s%s", getPrefix(), aspect, delta,
-                SAMPLE_RATE_FORMATTERS.get().format(sampleRate), tagString(tags)));
+        sendMetric(MetricType.COUNTER, aspect, delta, sampleRate, tags);
     }
 
     @Override
     public void recordGaugeValue(String aspect, double value, String... tags) {
-        // Intentionally using %s rather than %f here to avoid padding with extra 0s to represent precision
-        send(String.format("%s%s:%s|g%s", getPrefix(), aspect, NUMBER_FORMATTERS.get().format(value), tagString(tags)));
+        if (aggregator != null && aggregator.gauge(new MetricKey(MetricType.GAUGE, aspect, tags), value)) {
+            return;
+        }
+        sendMetric(MetricType.GAUGE, aspect, value, MessageEncoder.NO_SAMPLE_RATE, tags);
     }
 
     @Override
@@ -103,13 +88,15 @@ public abstract class StringMessageStatsDClient implements StatsDClient {
         if (isUnsampledEvent(sampleRate)) {
             return;
         }
-        send(String.format("%s%s:%s|g|@%s%s", getPrefix(), aspect, NUMBER_FORMATTERS.get().format(value),
-                SAMPLE_RATE_FORMATTERS.get().format(sampleRate), tagString(tags)));
+        sendMetric(MetricType.GAUGE, aspect, value, sampleRate, tags);
     }
 
     @Override
     public void recordGaugeValue(String aspect, long value, String... tags) {
-        send(String.format("%s%s:%d|g%s", getPrefix(), aspect, value, tagString(tags)));
+        if (aggregator != null && aggregator.gauge(new MetricKey(MetricType.GAUGE, aspect, tags), value)) {
+            return;
+        }
+        sendMetric(MetricType.GAUGE, aspect, value, MessageEncoder.NO_SAMPLE_RATE, tags);
     }
 
     @Override
@@ -117,13 +104,15 @@ public abstract class StringMessageStatsDClient implements StatsDClient {
         if (isUnsampledEvent(sampleRate)) {
             return;
         }
-        send(String.format("%s%s:%d|g|@%s%s", getPrefix(), aspect, value,
-                SAMPLE_RATE_FORMATTERS.get().format(sampleRate), tagString(tags)));
+        sendMetric(MetricType.GAUGE, aspect, value, sampleRate, tags);
     }
 
     @Override
     public void recordExecutionTime(String aspect, long timeInMs, String... tags) {
-        send(String.format("%s%s:%d|ms%s", getPrefix(), aspect, timeInMs, tagString(tags)));
+        if (packer != null && packer.sample(MetricType.TIMER, aspect, timeInMs, tags)) {
+            return;
+        }
+        sendMetric(MetricType.TIMER, aspect, timeInMs, MessageEncoder.NO_SAMPLE_RATE, tags);
     }
 
     @Override
@@ -131,14 +120,15 @@ public abstract class StringMessageStatsDClient implements StatsDClient {
         if (isUnsampledEvent(sampleRate)) {
             return;
         }
-        send(String.format("%s%s:%d|ms|@%s%s", getPrefix(), aspect, timeInMs,
-                SAMPLE_RATE_FORMATTERS.get().format(sampleRate), tagString(tags)));
+        sendMetric(MetricType.TIMER, aspect, timeInMs, sampleRate, tags);
     }
 
     @Override
     public void recordHistogramValue(String aspect, double value, String... tags) {
-        // Intentionally using %s rather than %f here to avoid padding with extra 0s to represent precision
-        send(String.format("%s%s:%s|h%s", getPrefix(), aspect, NUMBER_FORMATTERS.get().format(value), tagString(tags)));
+        if (packer != null && packer.sample(MetricType.HISTOGRAM, aspect, value, tags)) {
+            return;
+        }
+        sendMetric(MetricType.HISTOGRAM, aspect, value, MessageEncoder.NO_SAMPLE_RATE, tags);
     }
 
     @Override
@@ -146,15 +136,15 @@ public abstract class StringMessageStatsDClient implements StatsDClient {
         if (isUnsampledEvent(sampleRate)) {
             return;
         }
-
-        // Intentionally using %s rather than %f here to avoid padding with extra 0s to represent precision
-        send(String.format("%s%s:%s|h|@%s%s", getPrefix(), aspect, NUMBER_FORMATTERS.get().format(value),
-                SAMPLE_RATE_FORMATTERS.get().format(sampleRate), tagString(tags)));
+        sendMetric(MetricType.HISTOGRAM, aspect, value, sampleRate, tags);
     }
 
     @Override
     public void recordHistogramValue(String aspect, long value, String... tags) {
-        send(String.format("%s%s:%d|h%s", getPrefix(), aspect, value, tagString(tags)));
+        if (packer != null && packer.sample(MetricType.HISTOGRAM, aspect, value, tags)) {
+            return;
+        }
+        sendMetric(MetricType.HISTOGRAM, aspect, value, MessageEncoder.NO_SAMPLE_RATE, tags);
     }
 
     @Override
@@ -162,48 +152,278 @@ public abstract class StringMessageStatsDClient implements StatsDClient {
         if (isUnsampledEvent(sampleRate)) {
             return;
         }
-        send(String.format("%s%s:%d|h|@%s%s", getPrefix(), aspect, value,
-                SAMPLE_RATE_FORMATTERS.get().format(sampleRate), tagString(tags)));
+        sendMetric(MetricType.HISTOGRAM, aspect, value, sampleRate, tags);
     }
 
     @Override
     public void recordEvent(Event event, String... tags) {
         final String title = (getPrefix() + event.getTitle()).replace("\n", "\\n");
         final String text = event.getText().replace("\n", "\\n");
-        send(String.format("_e{%d,%d}:%s|%s%s%s",
-                title.length(), text.length(), title, text, eventMap(event), tagString(tags)));
+        final StringBuilder sb = MessageEncoder.builder()
+                .append("_e{").append(title.length()).append(',').append(text.length()).append("}:")
+                .append(title).append('|').append(text);
+        appendEventMap(sb, event);
+        MessageEncoder.appendTags(sb, tags, getConstantTagsRendered());
+        sendMessage(sb);
     }
 
     @Override
     public void recordServiceCheckRun(ServiceCheck sc) {
-        StringBuilder sb = new StringBuilder();
-        sb.append(String.format("_sc|%s|%d", sc.getName(), sc.getStatus()));
+        final StringBuilder sb = MessageEncoder.builder()
+                .append("_sc|").append(sc.getName()).append('|').append(sc.getStatus());
         if (sc.getTimestamp() > 0) {
-            sb.append(String.format("|d:%d", sc.getTimestamp()));
+            sb.append("|d:").append(sc.getTimestamp());
         }
         if (sc.getHostname() != null) {
-            sb.append(String.format("|h:%s", sc.getHostname()));
+            sb.append("|h:").append(sc.getHostname());
         }
-        sb.append(tagString(sc.getTags()));
+        MessageEncoder.appendTags(sb, sc.getTags(), getConstantTagsRendered());
         if (sc.getMessage() != null) {
-            sb.append(String.format("|m:%s", sc.getEscapedMessage()));
+            sb.append("|m:").append(sc.getEscapedMessage());
         }
 
-        send(sb.toString());
+        sendMessage(sb);
     }
 
     @Override
     public void recordSetValue(String aspect, String value, String... tags) {
-        send(String.format("%s%s:%s|s%s", getPrefix(), aspect, value, tagString(tags)));
+        if (aggregator != null && aggregator.set(aspect, value, tags)) {
+            return;
+        }
+        sendMetric(MetricType.SET, aspect, value, MessageEncoder.NO_SAMPLE_RATE, tags);
+    }
+
+    @Override
+    public Counter counter(String aspect, String... tags) {
+        final MetricTemplate template = template(MetricType.COUNTER, aspect, tags);
+        return new Counter() {
+            @Override
+            public void count(long delta) {
+                if (aggregator != null && aggregator.count(template.getKey(), delta)) {
+                    return;
+                }
+                sendMetric(template, delta, MessageEncoder.NO_SAMPLE_RATE);
+            }
+
+            @Override
+            public void count(long delta, double sampleRate) {
+                if (!isUnsampledEvent(sampleRate)) {
+                    sendMetric(template, delta, sampleRate);
+                }
+            }
+        };
+    }
+
+    @Override
+    public Gauge gauge(String aspect, String... tags) {
+        final MetricTemplate template = template(MetricType.GAUGE, aspect, tags);
+        return new Gauge() {
+            @Override
+            public void record(double value) {
+                if (aggregator != null && aggregator.gauge(template.getKey(), value)) {
+                    return;
+                }
+                sendMetric(template, value, MessageEncoder.NO_SAMPLE_RATE);
+            }
+
+            @Override
+            public void record(double value, double sampleRate) {
+                if (!isUnsampledEvent(sampleRate)) {
+                    sendMetric(template, value, sampleRate);
+                }
+            }
+
+            @Override
+            public void record(long value) {
+                if (aggregator != null && aggregator.gauge(template.getKey(), value)) {
+                    return;
+                }
+                sendMetric(template, value, MessageEncoder.NO_SAMPLE_RATE);
+            }
+
+            @Override
+            public void record(long value, double sampleRate) {
+                if (!isUnsampledEvent(sampleRate)) {
+                    sendMetric(template, value, sampleRate);
+                }
+            }
+        };
+    }
+
+    @Override
+    public Timer timer(String aspect, String... tags) {
+        final MetricTemplate template = template(MetricType.TIMER, aspect, tags);
+        return new Timer() {
+            @Override
+            public void record(long timeInMs) {
+                if (packer != null && packer.sample(template.getKey(), timeInMs)) {
+                    return;
+                }
+                sendMetric(template, timeInMs, MessageEncoder.NO_SAMPLE_RATE);
+            }
+
+            @Override
+            public void record(long timeInMs, double sampleRate) {
+                if (!isUnsampledEvent(sampleRate)) {
+                    sendMetric(template, timeInMs, sampleRate);
+                }
+            }
+        };
+    }
+
+    @Override
+    public Histogram histogram(String aspect, String... tags) {
+        final MetricTemplate template = template(MetricType.HISTOGRAM, aspect, tags);
+        return new Histogram() {
+            @Override
+            public void record(double value) {
+                if (packer != null && packer.sample(template.getKey(), value)) {
+                    return;
+                }
+                sendMetric(template, value, MessageEncoder.NO_SAMPLE_RATE);
+            }
+
+            @Override
+            public void record(double value, double sampleRate) {
+                if (!isUnsampledEvent(sampleRate)) {
+                    sendMetric(template, value, sampleRate);
+                }
+            }
+
+            @Override
+            public void record(long value) {
+                if (packer != null && packer.sample(template.getKey(), value)) {
+                    return;
+                }
+                sendMetric(template, value, MessageEncoder.NO_SAMPLE_RATE);
+            }
+
+            @Override
+            public void record(long value, double sampleRate) {
+                if (!isUnsampledEvent(sampleRate)) {
+                    sendMetric(template, value, sampleRate);
+                }
+            }
+        };
+    }
+
+    @Override
+    public SetMetric set(String aspect, String... tags) {
+        final MetricTemplate template = template(MetricType.SET, aspect, tags);
+        return value -> {
+            if (aggregator == null || !aggregator.set(template.getKey(), value)) {
+                sendMetric(template, value, MessageEncoder.NO_SAMPLE_RATE);
+            }
+        };
+    }
+
+    /**
+     * Turns on client-side aggregation: unsampled counts, gauges and sets are aggregated per aspect and tags
+     * and sent once per flush interval, see {@link Aggregator}. Meant to be called from the constructor of implementations, which must then call
+     * {@link #stopAggregation()} when closing.
+     */
+    void startAggregation(long flushInterval, TimeUnit unit, StatsDClientErrorHandler errorHandler) {
+        aggregator = new Aggregator(aggregationSink(), flushInterval, unit, Integer.MAX_VALUE, 0, errorHandler);
+    }
+
+    /**
+     * Turns on packing: unsampled histogram and timer values are buffered per aspect and tags and sent as
+     * multi-value lines (dogstatsd protocol 1.1) of at most {@code maxLineLength} bytes once per window. Meant
+     * to be called from the constructor of implementations, once prefix and constant tags are set, which must
+     * then call {@link #stopAggregation()} when closing.
+     */
+    void startPacking(long window, TimeUnit unit, int maxLineLength, StatsDClientErrorHandler errorHandler) {
+        final String constantTags = getConstantTagsRendered();
+        final int lineOverhead = MessageEncoder.utf8Length(getPrefix())
+                + (constantTags == null ? 0 : MessageEncoder.utf8Length(constantTags));
+        packer = new Aggregator(aggregationSink(), window, unit, maxLineLength, lineOverhead, errorHandler);
+    }
+
+    /**
+     * Stops client-side aggregation and packing, sending what has been buffered so far.
+     */
+    void stopAggregation() {
+        if (aggregator != null) {
+            aggregator.close();
+        }
+        if (packer != null) {
+            packer.close();
+        }
+    }
+
+    private Aggregator.Sink aggregationSink() {
+        return new Aggregator.Sink() {
+            @Override
+            public void count(MetricKey key, long value) {
+                sendMetric(key.getType(), key.getAspect(), value, MessageEncoder.NO_SAMPLE_RATE, key.getTags());
+            }
+
+            @Override
+            public void gauge(MetricKey key, long value) {
+                sendMetric(key.getType(), key.getAspect(), value, MessageEncoder.NO_SAMPLE_RATE, key.getTags());
+            }
+
+            @Override
+            public void gauge(MetricKey key, double value) {
+                sendMetric(key.getType(), key.getAspect(), value, MessageEncoder.NO_SAMPLE_RATE, key.getTags());
+            }
+
+            @Override
+            public void set(MetricKey key, String value) {
+                sendMetric(key.getType(), key.getAspect(), value, MessageEncoder.NO_SAMPLE_RATE, key.getTags());
+            }
+
+            @Override
+            public void samples(MetricKey key, String values) {
+                sendMetric(key.getType(), key.getAspect(), values, MessageEncoder.NO_SAMPLE_RATE, key.getTags());
+            }
+        };
+    }
+
+    /**
+     * Renders the constant parts of a metric for a handle. The prefix and constant tags are captured at this
+     * point, so implementations must not change them after handles have been handed out.
+     */
+    private MetricTemplate template(MetricType type, String aspect, String[] tags) {
+        return new MetricTemplate(getPrefix(), aspect, type, tags, getConstantTagsRendered());
+    }
+
+    /**
+     * All metrics funnel through the {@code sendMetric} methods, which render the line and {@link #sendMessage} it.
+     * Implementations in this package may override them to defer rendering, e.g. to a consumer thread.
+     */
+    void sendMetric(MetricType type, String aspect, long value, double sampleRate, String[] tags) {
+        sendMessage(MessageEncoder.appendMetric(MessageEncoder.builder(), getPrefix(), aspect, value, type, sampleRate,
+                tags, getConstantTagsRendered()));
+    }
+
+    void sendMetric(MetricType type, String aspect, double value, double sampleRate, String[] tags) {
+        sendMessage(MessageEncoder.appendMetric(MessageEncoder.builder(), getPrefix(), aspect, value, type, sampleRate,
+                tags, getConstantTagsRendered()));
+    }
+
+    void sendMetric(MetricType type, String aspect, String value, double sampleRate, String[] tags) {
+        sendMessage(MessageEncoder.appendMetric(MessageEncoder.builder(), getPrefix(), aspect, value, type, sampleRate,
+                tags, getConstantTagsRendered()));
+    }
+
+    void sendMetric(MetricTemplate template, long value, double sampleRate) {
+        sendMessage(template.render(value, sampleRate));
+    }
+
+    void sendMetric(MetricTemplate template, double value, double sampleRate) {
+        sendMessage(template.render(value, sampleRate));
+    }
+
+    void sendMetric(MetricTemplate template, String value, double sampleRate) {
+        sendMessage(template.render(value, sampleRate));
     }
 
     private boolean isUnsampledEvent(double sampleRate) {
         return sampleRate != 1.0 && ThreadLocalRandom.current().nextDouble() > sampleRate;
     }
 
-    private String eventMap(final Event event) {
-        final StringBuilder res = new StringBuilder();
-
+    private static void appendEventMap(final StringBuilder res, final Event event) {
         final long millisSinceEpoch = event.getMillisSinceEpoch();
         if (millisSinceEpoch != -1) {
             res.append("|d:").append(millisSinceEpoch / 1000);
@@ -228,25 +448,29 @@ public abstract class StringMessageStatsDClient implements StatsDClient {
         if (alertType != null) {
             res.append("|t:").append(alertType);
         }
+    }
 
-        return res.toString();
+    /**
+     * Returns the number of bytes the message takes up in UTF-8, see {@link #encode(CharSequence, ByteBuffer)}.
+     */
+    protected static int encodedLength(final CharSequence message) {
+        return MessageEncoder.utf8Length(message);
+    }
+
+    /**
+     * Writes the message to the buffer as UTF-8, with a fast path for ASCII. The buffer must have at least
+     * {@link #encodedLength(CharSequence)} bytes remaining.
+     */
+    protected static void encode(final CharSequence message, final ByteBuffer buffer) {
+        MessageEncoder.putUtf8(message, buffer);
     }
 
     /**
      * Generate a suffix conveying the given tag list to the client
      */
     static String tagString(String[] tags, String tagPrefix) {
-        List<String> components = new ArrayList<>();
-        components.add(tagPrefix);
-
-        if (tags != null) {
-            components.addAll(Arrays.asList(tags));
-        }
-
-        String joined = components.stream()
-                .filter(s -> s != null && !s.isEmpty())
-                .collect(Collectors.joining(","));
-
-        return ((tagPrefix == null && !joined.isEmpty()) ? "|#" : "") + joined;
+        final StringBuilder sb = new StringBuilder();
+        MessageEncoder.appendTags(sb, tags, tagPrefix);
+        return sb.toString();
     }
 }
@@ -0,0 +1,72 @@
+package com.timgroup.statsd;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A sum that many threads can add to cheaply and that can be drained without losing concurrent updates.
+ *
+ * <p>Like {@link java.util.concurrent.atomic.LongAdder} it starts out as a single value and spreads updates
+ * over padded cells once threads collide, but {@link #drain()} atomically takes each cell's value rather than
+ * resetting it, so an update racing with a drain is reported by either this drain or the next one.</p>
+ */
+final class StripedLong {
+    /** Cells are spaced a cache line apart to avoid false sharing. */
+    private static final int PADDING = 8;
+    private static final int STRIPES = Math.min(64, Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1) * 2);
+
+    private final AtomicLong base = new AtomicLong();
+    private volatile AtomicLongArray cells;
+
+    void add(final long delta) {
+        AtomicLongArray cs = cells;
+        if (cs == null) {
+            final long current = base.get();
+            if (base.compareAndSet(current, current + delta)) {
+                return;
+            }
+            cs = inflate();
+        }
+        cs.getAndAdd(cellIndex(), delta);
+    }
+
+    /**
+     * Returns the sum of all updates since the previous drain, without resetting it.
+     */
+    long sum() {
+        long sum = base.get();
+        final AtomicLongArray cs = cells;
+        if (cs != null) {
+            for (int i = 0; i < STRIPES; i++) {
+                sum += cs.get(i * PADDING);
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Returns the sum of all updates since the previous drain and resets it to zero.
+     */
+    long drain() {
+        long sum = base.getAndSet(0);
+        final AtomicLongArray cs = cells;
+        if (cs != null) {
+            for (int i = 0; i < STRIPES; i++) {
+                sum += cs.getAndSet(i * PADDING, 0);
+            }
+        }
+        return sum;
+    }
+
+    private synchronized AtomicLongArray inflate() {
+        if (cells == null) {
+            cells = new AtomicLongArray(STRIPES * PADDING);
+        }
+        return cells;
+    }
+
+    private static int cellIndex() {
+        final long id = Thread.currentThread().getId();
+        return (int) ((id ^ (id >>> 16)) & (STRIPES - 1)) * PADDING;
+    }
+}
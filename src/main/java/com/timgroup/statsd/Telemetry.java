@@ -0,0 +1,166 @@
+package com.timgroup.statsd;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Counts what an asynchronous client does with the messages it is given and, once started, periodically sends
+ * these counts as metrics of its own through the same client:
+ * <ul>
+ *     <li>{@code statsd.client.messages_queued} - messages accepted into the queue</li>
+ *     <li>{@code statsd.client.messages_dropped} - messages dropped, tagged with the {@code reason}</li>
+ *     <li>{@code statsd.client.packets_oversized} - messages too large for a packet, sent in a larger one of their
+ *     own</li>
+ *     <li>{@code statsd.client.packets_sent} and {@code statsd.client.bytes_sent} - what made it to the socket</li>
+ *     <li>{@code statsd.client.send_errors} - packets that could not be sent</li>
+ *     <li>{@code statsd.client.queue_size} - a gauge of the messages waiting in the queue</li>
+ *     <li>{@code statsd.client.queue_bytes} - a gauge of their encoded size, where the client keeps track of it</li>
+ * </ul>
+ * Counts cover the interval since the previous report. All are tagged with the client's constant tags and
+ * {@code client_id}, which tells instances apart. The client's prefix is not applied.
+ */
+final class Telemetry {
+    static final String PREFIX = "statsd.client.";
+
+    private static final AtomicInteger INSTANCES = new AtomicInteger();
+
+    final StripedLong messagesQueued = new StripedLong();
+    final StripedLong packetsOversized = new StripedLong();
+    final StripedLong packetsSent = new StripedLong();
+    final StripedLong bytesSent = new StripedLong();
+    final StripedLong sendErrors = new StripedLong();
+
+    private final DropCounters drops;
+
+    private Consumer<String> out;
+    private String constantTags;
+    private String[] tags;
+    private String[][] dropTags;
+    private LongSupplier queueSize;
+    private LongSupplier queueBytes;
+    private ScheduledExecutorService scheduler;
+    private final long[] reported = new long[5 + DropCounters.Reason.values().length];
+
+    Telemetry(final DropCounters drops) {
+        this.drops = drops;
+    }
+
+    /**
+     * Sends the packet in the buffer, from its start to its position, through the transport and clears the buffer,
+     * counting the packet or the failure.
+     */
+    void send(final Transport transport, final ByteBuffer buffer) throws IOException {
+        final int sizeOfPacket = buffer.position();
+        buffer.flip();
+        try {
+            transport.send(buffer);
+        } catch (final IOException e) {
+            sendErrors.add(1);
+            throw e;
+        } finally {
+            buffer.clear();
+        }
+        packetsSent.add(1);
+        bytesSent.add(sizeOfPacket);
+    }
+
+    /**
+     * Returns an id for a client that wasn't given one, unique within the JVM.
+     */
+    static String defaultClientId() {
+        return String.valueOf(INSTANCES.incrementAndGet());
+    }
+
+    /**
+     * Starts sending reports every interval.
+     *
+     * @param out
+     *     queues a rendered message on the client
+     * @param queueBytes
+     *     the encoded size of the queued messages, or null if the client doesn't keep track of it
+     */
+    @SuppressWarnings("FutureReturnValueIgnored")
+    synchronized void start(final Consumer<String> out, final String constantTags, final String clientId,
+                            final LongSupplier queueSize, final LongSupplier queueBytes,
+                            final long interval, final TimeUnit unit, final StatsDClientErrorHandler errorHandler) {
+        this.out = out;
+        this.constantTags = constantTags;
+        this.tags = new String[] {"client_id:" + clientId};
+        final DropCounters.Reason[] reasons = DropCounters.Reason.values();
+        this.dropTags = new String[reasons.length][];
+        for (final DropCounters.Reason reason : reasons) {
+            dropTags[reason.ordinal()] = new String[] {tags[0], "reason:" + reason.tag()};
+        }
+        this.queueSize = queueSize;
+        this.queueBytes = queueBytes;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r);
+            thread.setName("statsd-telemetry-" + thread.getName());
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(() -> {
+            try {
+                report();
+            } catch (final Exception e) {
+                errorHandler.handle(e);
+            }
+        }, interval, interval, unit);
+    }
+
+    /**
+     * Stops reporting, sending a last report if reporting had been started.
+     */
+    void close() {
+        final ScheduledExecutorService scheduler;
+        synchronized (this) {
+            scheduler = this.scheduler;
+        }
+        if (scheduler == null) {
+            return;
+        }
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        report();
+    }
+
+    synchronized void report() {
+        // read the queue before the report itself adds to it
+        final long size = queueSize.getAsLong();
+        final long bytes = queueBytes != null ? queueBytes.getAsLong() : -1;
+        count(0, "messages_queued", messagesQueued.sum(), tags);
+        count(1, "packets_oversized", packetsOversized.sum(), tags);
+        count(2, "packets_sent", packetsSent.sum(), tags);
+        count(3, "bytes_sent", bytesSent.sum(), tags);
+        count(4, "send_errors", sendErrors.sum(), tags);
+        for (final DropCounters.Reason reason : DropCounters.Reason.values()) {
+            count(5 + reason.ordinal(), "messages_dropped", drops.dropped(reason), dropTags[reason.ordinal()]);
+        }
+        gauge("queue_size", size);
+        if (queueBytes != null) {
+            gauge("queue_bytes", bytes);
+        }
+    }
+
+    private void count(final int slot, final String name, final long total, final String[] tags) {
+        final long delta = total - reported[slot];
+        reported[slot] = total;
+        out.accept(MessageEncoder.appendMetric(MessageEncoder.builder(), PREFIX, name, delta, MetricType.COUNTER,
+                MessageEncoder.NO_SAMPLE_RATE, tags, constantTags).toString());
+    }
+
+    private void gauge(final String name, final long value) {
+        out.accept(MessageEncoder.appendMetric(MessageEncoder.builder(), PREFIX, name, value, MetricType.GAUGE,
+                MessageEncoder.NO_SAMPLE_RATE, tags, constantTags).toString());
+    }
+}
@@ -0,0 +1,27 @@
+package com.timgroup.statsd;
+
+/**
+ * A timer bound to a fixed aspect and set of tags, obtained from {@link StatsDClient#timer}.
+ *
+ * <p>These methods are non-blocking and are guaranteed not to throw an exception.</p>
+ */
+public interface Timer {
+
+    /**
+     * Records an execution time.
+     *
+     * @param timeInMs
+     *     the time in milliseconds
+     */
+    void record(long timeInMs);
+
+    /**
+     * Records an execution time.
+     *
+     * @param timeInMs
+     *     the time in milliseconds
+     * @param sampleRate
+     *     percentage of time metric to be sent
+     */
+    void record(long timeInMs, double sampleRate);
+}
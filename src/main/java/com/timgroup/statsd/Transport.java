@@ -0,0 +1,57 @@
+package com.timgroup.statsd;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Carries packets from an asynchronous client to the StatsD server. The clients pack newline-separated messages into
+ * a buffer of {@link #packetSize()} bytes and hand it over when it is full or there is nothing left to add, so the
+ * queueing strategy and the socket are independent of each other: the built-in transports send UDP or Unix domain
+ * datagrams or write to a TCP or Unix stream socket, and others can be given to the builders with
+ * {@code withTransport}, for instance to keep the packets in memory.
+ *
+ * <p>A transport is used by a single sender thread, so implementations need not be thread-safe. The client closes
+ * its transport when it is closed.</p>
+ */
+public interface Transport extends Closeable {
+
+    /**
+     * Returns the size, in bytes, of the packets the client packs messages into.
+     */
+    int packetSize();
+
+    /**
+     * Returns the largest packet, in bytes, that {@link #send} takes. A message too large for {@link #packetSize()}
+     * is sent in a packet of its own, up to this size, and dropped beyond it.
+     */
+    default int maxPacketSize() {
+        return packetSize();
+    }
+
+    /**
+     * Sends the packet from its position to its limit. The buffer is reused once this returns, so transports that
+     * keep the data must copy it.
+     *
+     * @throws IOException
+     *     if the packet, or part of it, was lost
+     */
+    void send(ByteBuffer packet) throws IOException;
+
+    /**
+     * Returns whether {@link #send} may keep data to write later, in which case the client calls {@link #flush()}
+     * while it has nothing else to send.
+     */
+    default boolean isBuffered() {
+        return false;
+    }
+
+    /**
+     * Writes what earlier sends kept back, as far as possible without blocking.
+     *
+     * @return true if nothing is left to write
+     */
+    default boolean flush() {
+        return true;
+    }
+}
@@ -0,0 +1,51 @@
+package com.timgroup.statsd;
+
+import jnr.unixsocket.UnixDatagramChannel;
+import jnr.unixsocket.UnixSocketAddress;
+import jnr.unixsocket.UnixSocketOptions;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Sends datagrams to a Unix domain socket, such as the one the Datadog agent listens on with
+ * {@code dogstatsd_socket}. Compared to UDP this skips the IP stack, allows larger packets and, as sends block
+ * while the agent's receive buffer is full, slows the client down instead of silently losing packets.
+ *
+ * <p>The JDK only supports Unix domain sockets for stream channels, so datagrams go through jnr-unixsocket,
+ * whose channel is a {@link DatagramChannel} like the UDP one. jnr-unixsocket is an optional dependency, so
+ * {@link DatagramTransport} only refers to its classes through this one, which is only loaded for Unix sockets.</p>
+ */
+final class UnixDatagrams {
+    /**
+     * The agent reads up to 8 KiB per datagram from its Unix socket by default.
+     */
+    static final int PACKET_SIZE_BYTES = 8192;
+
+    /**
+     * How long a send may block on a full socket before it fails, so a stuck agent can't stall the client
+     * forever.
+     */
+    static final int SEND_TIMEOUT_MILLIS = 1000;
+
+    private UnixDatagrams() {}
+
+    static DatagramChannel open() throws IOException {
+        final UnixDatagramChannel channel = UnixDatagramChannel.open();
+        channel.setOption(UnixSocketOptions.SO_SNDTIMEO, SEND_TIMEOUT_MILLIS);
+        return channel;
+    }
+
+    static int sendBufferSize(final DatagramChannel channel) throws IOException {
+        return ((UnixDatagramChannel) channel).getOption(UnixSocketOptions.SO_SNDBUF);
+    }
+
+    static void setSendBufferSize(final DatagramChannel channel, final int bytes) throws IOException {
+        ((UnixDatagramChannel) channel).setOption(UnixSocketOptions.SO_SNDBUF, bytes);
+    }
+
+    static SocketAddress address(final String path) {
+        return new UnixSocketAddress(path);
+    }
+}
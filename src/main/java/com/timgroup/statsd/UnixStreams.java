@@ -0,0 +1,26 @@
+package com.timgroup.statsd;
+
+import jnr.unixsocket.UnixSocketAddress;
+import jnr.unixsocket.UnixSocketChannel;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Connects to Unix domain stream sockets through jnr-unixsocket, as Java 8 has no support for them.
+ *
+ * <p>jnr-unixsocket is an optional dependency, so {@link StreamTransport} only refers to its classes through this
+ * one, which is only loaded for Unix sockets.</p>
+ */
+final class UnixStreams {
+    private UnixStreams() {}
+
+    static SocketAddress address(final String path) {
+        return new UnixSocketAddress(path);
+    }
+
+    static SocketChannel open() throws IOException {
+        return UnixSocketChannel.open();
+    }
+}
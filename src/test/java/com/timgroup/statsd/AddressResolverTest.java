@@ -0,0 +1,169 @@
+package com.timgroup.statsd;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AddressResolverTest {
+
+    @Test
+    public void resolvesRightAway() throws Exception {
+        final AddressResolver resolver = AddressResolver.start("localhost", 8125, AddressResolver.DEFAULT_TTL_NANOS);
+        try {
+            assertEquals(new InetSocketAddress(InetAddress.getByName("localhost"), 8125), resolver.call());
+        } finally {
+            resolver.close();
+        }
+    }
+
+    @Test(timeout = 5000L)
+    public void keepsResolvingUntilTheLastResolverIsClosed() throws Exception {
+        // clients that other tests in this JVM left open keep the thread alive
+        final boolean othersRunning = resolverThreads() > 0;
+        final long ttl = TimeUnit.MILLISECONDS.toNanos(1);
+        final AtomicInteger firstLookups = new AtomicInteger();
+        final AtomicInteger secondLookups = new AtomicInteger();
+        final AddressResolver first = AddressResolver.start("localhost", 8125, ttl, ttl, hostname -> {
+            firstLookups.incrementAndGet();
+            return InetAddress.getLoopbackAddress();
+        });
+        final AddressResolver second = AddressResolver.start("localhost", 8126, ttl, ttl, hostname -> {
+            secondLookups.incrementAndGet();
+            return InetAddress.getLoopbackAddress();
+        });
+        assertTrue(resolverThreads() > 0);
+
+        while (firstLookups.get() < 3) {
+            Thread.sleep(1);
+        }
+        first.close();
+        first.close();
+        final int firstClosedAt = firstLookups.get();
+        final int secondAt = secondLookups.get();
+        Thread.sleep(20);
+        // a refresh that was running when the resolver was closed may still finish
+        assertTrue(firstLookups.get() <= firstClosedAt + 1);
+        assertTrue(secondLookups.get() > secondAt);
+        assertEquals(8125, first.call().getPort());
+        assertEquals(8126, second.call().getPort());
+        assertTrue(resolverThreads() > 0);
+
+        second.close();
+        while (!othersRunning && resolverThreads() > 0) {
+            Thread.sleep(10);
+        }
+        assertFalse(second.call().isUnresolved());
+    }
+
+    @Test(timeout = 5000L)
+    public void updatesTheAddressOnceTheTimeToLiveHasPassed() throws Exception {
+        final InetAddress before = InetAddress.getByName("127.0.0.1");
+        final InetAddress after = InetAddress.getByName("127.0.0.2");
+        final AtomicInteger lookups = new AtomicInteger();
+        final long ttl = TimeUnit.MILLISECONDS.toNanos(100);
+        final long start = System.nanoTime();
+        final AddressResolver resolver = AddressResolver.start("statsd-host", 8125, ttl, ttl,
+                hostname -> lookups.getAndIncrement() == 0 ? before : after);
+        try {
+            assertEquals(new InetSocketAddress(before, 8125), resolver.call());
+            while (resolver.call().getAddress().equals(before)) {
+                Thread.sleep(1);
+            }
+            assertTrue(System.nanoTime() - start >= ttl);
+            assertEquals(new InetSocketAddress(after, 8125), resolver.call());
+        } finally {
+            resolver.close();
+        }
+    }
+
+    @Test(timeout = 5000L)
+    public void keepsTheLastAddressAndBacksOffWhileLookupsFail() throws Exception {
+        final InetAddress last = InetAddress.getByName("127.0.0.1");
+        final AtomicInteger lookups = new AtomicInteger();
+        final List<Long> failures = new CopyOnWriteArrayList<>();
+        final long ttl = TimeUnit.MILLISECONDS.toNanos(200);
+        final long minRetry = TimeUnit.MILLISECONDS.toNanos(10);
+        final AddressResolver resolver = AddressResolver.start("statsd-host", 8125, ttl, minRetry, hostname -> {
+            if (lookups.getAndIncrement() == 0) {
+                return last;
+            }
+            failures.add(System.nanoTime());
+            throw new UnknownHostException(hostname);
+        });
+        try {
+            // retried after 10, 20, 40, 80, 160 and then 200 ms, the time to live
+            while (failures.size() < 7) {
+                Thread.sleep(5);
+                assertEquals(new InetSocketAddress(last, 8125), resolver.call());
+            }
+        } finally {
+            resolver.close();
+        }
+        long expected = minRetry;
+        for (int i = 1; i < 7; i++) {
+            final long delay = failures.get(i) - failures.get(i - 1);
+            assertTrue("retry " + i + " after " + delay + " ns", delay >= expected);
+            expected = Math.min(expected * 2, ttl);
+        }
+    }
+
+    @Test(timeout = 5000L)
+    public void keepsResolvingAfterALookupThrew() throws Exception {
+        final InetAddress first = InetAddress.getByName("127.0.0.1");
+        final InetAddress second = InetAddress.getByName("127.0.0.2");
+        final AtomicInteger lookups = new AtomicInteger();
+        final long ttl = TimeUnit.MILLISECONDS.toNanos(50);
+        final long minRetry = TimeUnit.MILLISECONDS.toNanos(10);
+        final AddressResolver resolver = AddressResolver.start("statsd-host", 8125, ttl, minRetry, hostname -> {
+            final int lookup = lookups.getAndIncrement();
+            if (lookup == 0) {
+                return first;
+            }
+            if (lookup == 1) {
+                throw new IllegalStateException("lookup failed");
+            }
+            return second;
+        });
+        try {
+            // the failed lookup is retried rather than ending the refreshes, keeping the first address meanwhile
+            InetSocketAddress current;
+            while (!(current = resolver.call()).equals(new InetSocketAddress(second, 8125))) {
+                assertEquals(new InetSocketAddress(first, 8125), current);
+                Thread.sleep(5);
+            }
+        } finally {
+            resolver.close();
+        }
+    }
+
+    @Test(timeout = 5000L)
+    public void startsAgainAfterTheLastResolverWasClosed() throws Exception {
+        AddressResolver.start("localhost", 8125, AddressResolver.DEFAULT_TTL_NANOS).close();
+        final AddressResolver resolver = AddressResolver.start("localhost", 8125, AddressResolver.DEFAULT_TTL_NANOS);
+        try {
+            assertTrue(resolverThreads() > 0);
+        } finally {
+            resolver.close();
+        }
+    }
+
+    private static int resolverThreads() {
+        int threads = 0;
+        for (final Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.isAlive() && "statsd-dns-resolver".equals(thread.getName())) {
+                threads++;
+            }
+        }
+        return threads;
+    }
+}
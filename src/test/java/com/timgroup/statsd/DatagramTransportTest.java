@@ -0,0 +1,60 @@
+package com.timgroup.statsd;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.net.InetSocketAddress;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DatagramTransportTest {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void sizesPacketsAsAsked() throws Exception {
+        try (DatagramTransport transport = DatagramTransport.udp(() -> new InetSocketAddress("localhost", 8125),
+                false, 0)) {
+            assertEquals(DatagramTransport.UDP_PACKET_SIZE_BYTES, transport.packetSize());
+        }
+        try (DatagramTransport transport = DatagramTransport.udp(() -> new InetSocketAddress("localhost", 8125),
+                false, 4096)) {
+            assertEquals(4096, transport.packetSize());
+        }
+    }
+
+    @Test
+    public void fillsTheLoopbackInterfaceWhenSizingAutomatically() throws Exception {
+        try (DatagramTransport transport = DatagramTransport.udp(() -> new InetSocketAddress("127.0.0.1", 8125),
+                false, DatagramTransport.AUTO_PACKET_SIZE)) {
+            assertTrue(transport.packetSize() > DatagramTransport.UDP_PACKET_SIZE_BYTES);
+            assertTrue(transport.packetSize() <= DatagramTransport.MAX_UDP_PACKET_SIZE_BYTES);
+        }
+    }
+
+    @Test
+    public void keepsTheDefaultForRemoteHostsWhenSizingAutomatically() throws Exception {
+        // an address from TEST-NET-1, which no interface of this host has
+        try (DatagramTransport transport = DatagramTransport.udp(() -> new InetSocketAddress("192.0.2.1", 8125),
+                false, DatagramTransport.AUTO_PACKET_SIZE)) {
+            assertEquals(DatagramTransport.UDP_PACKET_SIZE_BYTES, transport.packetSize());
+        }
+    }
+
+    @Test
+    public void sizesUnixSocketPacketsAfterTheSendBuffer() throws Exception {
+        final String path = folder.getRoot().getPath() + "/dsd.socket";
+        try (DatagramTransport transport = DatagramTransport.unixSocket(path, DatagramTransport.AUTO_PACKET_SIZE)) {
+            assertTrue(transport.packetSize() >= UnixDatagrams.PACKET_SIZE_BYTES);
+            assertTrue(transport.packetSize() <= DatagramTransport.MAX_UNIX_PACKET_SIZE_BYTES);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsPacketsLargerThanUdpAllows() throws Exception {
+        DatagramTransport.udp(() -> new InetSocketAddress("localhost", 8125), false,
+                DatagramTransport.MAX_UDP_PACKET_SIZE_BYTES + 1);
+    }
+}
@@ -0,0 +1,22 @@
+package com.timgroup.statsd;
+
+import org.junit.Test;
+
+/**
+ * Runs the {@link DisruptorStatsDClientTest} suite with metrics rendered on the consumer thread.
+ */
+public class DisruptorFormatOnConsumerStatsDClientTest extends DisruptorStatsDClientTest {
+
+    @Override
+    protected boolean formatOnConsumer() {
+        return true;
+    }
+
+    @Test
+    public void encodesNonAsciiOnConsumer() {
+        final String value = "\u00e9t\u00e9 \u2020 \ud83d\ude00"; // "été † 😀"
+
+        client().recordSetValue("myset", value, "tag:\u00b5");
+        assertMessageReceived("myset:" + value + "|s|#tag:\u00b5");
+    }
+}
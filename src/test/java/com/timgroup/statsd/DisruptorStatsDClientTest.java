@@ -1,29 +1,57 @@
 package com.timgroup.statsd;
 
+import com.lmax.disruptor.BusySpinWaitStrategy;
+import com.lmax.disruptor.SleepingWaitStrategy;
+import com.lmax.disruptor.TimeoutBlockingWaitStrategy;
+import org.junit.After;
 import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class DisruptorStatsDClientTest extends StringMessageStatsDClientTest {
     private String prefix;
     private int localPort;
     private DummyStatsDServer server;
 
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
     @Override
     @Before
     public void setUp() throws Exception {
-        ServerSocket socket = new ServerSocket(0);
-        int localPort = socket.getLocalPort();
-        this.server = new DummyStatsDServer(localPort);
-        this.localPort = localPort;
+        this.server = new DummyStatsDServer(0);
+        this.localPort = server.port();
         this.prefix = "disruptor.prefix";
     }
 
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
     @Override
     protected StringMessageStatsDClient client() {
-        return new DisruptorStatsDClient(prefix, "localhost", localPort);
+        return new DisruptorStatsDClient(prefix, "localhost", localPort, null, e -> {}, formatOnConsumer());
+    }
+
+    protected boolean formatOnConsumer() {
+        return false;
     }
 
     @Override
@@ -57,4 +85,349 @@ public class DisruptorStatsDClientTest extends StringMessageStatsDClientTest {
         client().recordEvent(event, "tag-1", "tag-2");
         assertRawMessageReceived("_e{23,12}:disruptor.prefix.title1|text1\\nline2|d:1234567|h:host1|k:key1|p:low|t:error|#tag-1,tag-2");
     }
+
+    @Test(timeout = 5000L)
+    public void reportsTelemetryWhenClosed() throws Exception {
+        final DisruptorStatsDClient client = DisruptorStatsDClient.builder()
+                .withPrefix(prefix)
+                .withAddress("localhost", localPort)
+                .withFormatOnConsumer(formatOnConsumer())
+                .withTelemetry(1, TimeUnit.HOURS)
+                .withClientId("test")
+                .build();
+        client.count("mycount", 1);
+        assertMessageReceived("mycount:1|c");
+        // the consumer sends a batch before it moves past it in the ring buffer
+        while (client.queued() > 0) {
+            Thread.sleep(1);
+        }
+
+        client.close();
+
+        final Set<String> reported = new HashSet<>();
+        for (int i = 0; i < 10; i++) {
+            reported.add(server.nextMessage());
+        }
+        assertTrue(reported.toString(), reported.contains("statsd.client.messages_queued:1|c|#client_id:test"));
+        assertTrue(reported.toString(), reported.contains("statsd.client.queue_size:0|g|#client_id:test"));
+        assertEquals(0, client.getDroppedMessages().values().stream().mapToLong(Long::longValue).sum());
+    }
+
+    @Test(timeout = 5000L)
+    public void sendsMessagesLargerThanAUdpPacketOverAUnixSocket() throws Exception {
+        final String socketPath = folder.getRoot().toPath().resolve("dsd.socket").toString();
+        final DummyStatsDServer unixServer = new DummyStatsDServer(socketPath);
+        final DisruptorStatsDClient client = DisruptorStatsDClient.builder()
+                .withPrefix(prefix)
+                .withUnixSocket(socketPath)
+                .withFormatOnConsumer(formatOnConsumer())
+                .build();
+        final char[] value = new char[4000];
+        Arrays.fill(value, 'x');
+        final String tag = "large:" + new String(value);
+        try {
+            client.count("mycount", 24);
+            client.count("mycount", 1, tag);
+
+            assertEquals(prefix + ".mycount:24|c", unixServer.nextMessage());
+            assertEquals(prefix + ".mycount:1|c|#" + tag, unixServer.nextMessage());
+        } finally {
+            client.close();
+            unixServer.close();
+        }
+    }
+
+    @Test(timeout = 10000L)
+    public void buffersMessagesOverTcpUntilTheServerIsUp() throws Exception {
+        final int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        final DisruptorStatsDClient client = DisruptorStatsDClient.builder()
+                .withPrefix(prefix)
+                .withTcpAddress("localhost", port)
+                .withFormatOnConsumer(formatOnConsumer())
+                .build();
+        DummyStreamStatsDServer tcpServer = null;
+        try {
+            client.count("mycount", 24);
+            client.gauge("mygauge", 42);
+            Thread.sleep(100);
+            // nothing else is published, so the client has to write the buffered messages while idle
+            tcpServer = new DummyStreamStatsDServer(port);
+
+            assertEquals(prefix + ".mycount:24|c", tcpServer.nextMessage());
+            assertEquals(prefix + ".mygauge:42|g", tcpServer.nextMessage());
+        } finally {
+            client.close();
+            if (tcpServer != null) {
+                tcpServer.close();
+            }
+        }
+    }
+
+    @Test(timeout = 5000L)
+    public void sendsPacketsThroughAGivenTransport() throws Exception {
+        final InMemoryTransport transport = new InMemoryTransport();
+        final DisruptorStatsDClient client = DisruptorStatsDClient.builder()
+                .withPrefix(prefix)
+                .withTransport(transport)
+                .withFormatOnConsumer(formatOnConsumer())
+                .build();
+        try {
+            client.count("mycount", 24);
+            assertEquals(prefix + ".mycount:24|c", transport.nextPacket());
+        } finally {
+            client.close();
+        }
+        assertTrue(transport.isClosed());
+    }
+
+    @Test(timeout = 5000L)
+    public void sendsMessagesOverAConnectedSocket() throws Exception {
+        final DisruptorStatsDClient client = DisruptorStatsDClient.builder()
+                .withPrefix(prefix)
+                .withAddress("localhost", localPort)
+                .withConnectedSocket(true)
+                .withFormatOnConsumer(formatOnConsumer())
+                .build();
+        try {
+            client.count("mycount", 24);
+            assertEquals(prefix + ".mycount:24|c", server.nextMessage());
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test(timeout = 5000L)
+    public void sendsMessagesLargerThanTheDefaultPacketSizeWhenConfigured() throws Exception {
+        final String aspect = String.join("", Collections.nCopies(3000, "a"));
+        final DisruptorStatsDClient client = DisruptorStatsDClient.builder()
+                .withPrefix(prefix)
+                .withAddress("localhost", localPort)
+                .withMaxPacketSize(8192)
+                .withFormatOnConsumer(formatOnConsumer())
+                .build();
+        try {
+            client.count(aspect, 24);
+            assertEquals(prefix + "." + aspect + ":24|c", server.nextMessage());
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test(timeout = 5000L)
+    public void sendsAMessageThatExactlyFillsAPacketInThatPacket() throws Exception {
+        // "p." + aspect + ":1|c" takes the whole 64 bytes
+        final String aspect = String.join("", Collections.nCopies(58, "a"));
+        final InMemoryTransport transport = new InMemoryTransport();
+        final DisruptorStatsDClient client = DisruptorStatsDClient.builder()
+                .withPrefix("p")
+                .withTransport(transport)
+                .withFormatOnConsumer(formatOnConsumer())
+                .build();
+        try {
+            client.count(aspect, 1);
+            client.count("second", 2);
+
+            assertEquals("p." + aspect + ":1|c", transport.nextPacket());
+            assertEquals("p.second:2|c", transport.nextPacket());
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test(timeout = 5000L)
+    public void sendsAMessageTooLargeForAPacketInAPacketOfItsOwn() throws Exception {
+        final String aspect = String.join("", Collections.nCopies(100, "a"));
+        final InMemoryTransport transport = new InMemoryTransport(256);
+        final DisruptorStatsDClient client = DisruptorStatsDClient.builder()
+                .withPrefix("p")
+                .withTransport(transport)
+                .withLinger(1, TimeUnit.HOURS)
+                .withFormatOnConsumer(formatOnConsumer())
+                .build();
+        client.count("first", 1);
+        client.count(aspect, 2);
+        client.count("second", 3);
+
+        assertEquals("p." + aspect + ":2|c", transport.nextPacket());
+        client.close();
+        assertEquals("p.first:1|c\np.second:3|c", transport.nextPacket());
+    }
+
+    @Test(timeout = 5000L)
+    public void dropsAMessageTooLargeForTheTransport() throws Exception {
+        final String aspect = String.join("", Collections.nCopies(300, "a"));
+        final InMemoryTransport transport = new InMemoryTransport(256);
+        final DisruptorStatsDClient client = DisruptorStatsDClient.builder()
+                .withPrefix("p")
+                .withTransport(transport)
+                .withFormatOnConsumer(formatOnConsumer())
+                .build();
+        try {
+            client.count(aspect, 1);
+            client.count("mycount", 2);
+
+            assertEquals("p.mycount:2|c", transport.nextPacket());
+            assertEquals(1L, (long) client.getDroppedMessages().get("counter"));
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test(timeout = 5000L)
+    public void keepsEveryThreadsMessagesInOrderAcrossShards() throws Exception {
+        final DisruptorStatsDClient client = DisruptorStatsDClient.builder()
+                .withPrefix(prefix)
+                .withAddress("localhost", localPort)
+                .withShards(4)
+                .withFormatOnConsumer(formatOnConsumer())
+                .build();
+        final int threads = 8;
+        final int messages = 25;
+        try {
+            final List<Thread> producers = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                final String aspect = "thread" + i;
+                final Thread producer = new Thread(() -> {
+                    for (int j = 0; j < messages; j++) {
+                        client.count(aspect, j);
+                    }
+                });
+                producers.add(producer);
+                producer.start();
+            }
+            for (final Thread producer : producers) {
+                producer.join();
+            }
+
+            final Map<String, Long> last = new HashMap<>();
+            for (int i = 0; i < threads * messages; i++) {
+                final String message = server.nextMessage();
+                final String aspect = message.substring(prefix.length() + 1, message.indexOf(':'));
+                final long value = Long.parseLong(message.substring(message.indexOf(':') + 1, message.indexOf('|')));
+                assertEquals(message, last.getOrDefault(aspect, -1L) + 1, value);
+                last.put(aspect, value);
+            }
+            assertEquals(threads, last.size());
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsAGivenTransportForSeveralShards() throws Exception {
+        DisruptorStatsDClient.builder()
+                .withTransport(new InMemoryTransport())
+                .withShards(2)
+                .build();
+    }
+
+    @Test(timeout = 5000L)
+    public void lingersForMoreMessagesBeforeSendingAPacket() throws Exception {
+        final InMemoryTransport transport = new InMemoryTransport();
+        final DisruptorStatsDClient client = DisruptorStatsDClient.builder()
+                .withPrefix("p")
+                .withTransport(transport)
+                .withLinger(200, TimeUnit.MILLISECONDS)
+                .withFormatOnConsumer(formatOnConsumer())
+                .build();
+        try {
+            final long start = System.nanoTime();
+            client.count("first", 1);
+            Thread.sleep(20);
+            client.count("second", 2);
+
+            assertEquals("p.first:1|c\np.second:2|c", transport.nextPacket());
+            assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(200));
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test(timeout = 5000L)
+    public void sendsALingeringPacketWhenClosed() throws Exception {
+        final InMemoryTransport transport = new InMemoryTransport();
+        final DisruptorStatsDClient client = DisruptorStatsDClient.builder()
+                .withPrefix("p")
+                .withTransport(transport)
+                .withLinger(1, TimeUnit.HOURS)
+                .withFormatOnConsumer(formatOnConsumer())
+                .build();
+        client.count("mycount", 24);
+        client.close();
+
+        assertEquals("p.mycount:24|c", transport.nextPacket());
+    }
+
+    @Test(timeout = 5000L)
+    public void runsWithTheConfiguredRingSizeWaitStrategyAndThreads() throws Exception {
+        final InMemoryTransport transport = new InMemoryTransport();
+        final AtomicInteger threads = new AtomicInteger();
+        final DisruptorStatsDClient client = DisruptorStatsDClient.builder()
+                .withPrefix("p")
+                .withTransport(transport)
+                .withRingSize(8)
+                .withWaitStrategy(SleepingWaitStrategy::new)
+                .withSingleProducer(true)
+                .withThreadFactory(r -> {
+                    threads.incrementAndGet();
+                    final Thread thread = new Thread(r, "my-consumer");
+                    thread.setDaemon(true);
+                    return thread;
+                })
+                .withFormatOnConsumer(formatOnConsumer())
+                .build();
+        try {
+            client.count("mycount", 24);
+
+            assertEquals("p.mycount:24|c", transport.nextPacket());
+            assertEquals(1, threads.get());
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test(timeout = 5000L)
+    public void lingersWithAGivenTimeoutWaitStrategy() throws Exception {
+        final InMemoryTransport transport = new InMemoryTransport();
+        final DisruptorStatsDClient client = DisruptorStatsDClient.builder()
+                .withPrefix("p")
+                .withTransport(transport)
+                .withLinger(20, TimeUnit.MILLISECONDS)
+                .withWaitStrategy(() -> new TimeoutBlockingWaitStrategy(5, TimeUnit.MILLISECONDS))
+                .withFormatOnConsumer(formatOnConsumer())
+                .build();
+        try {
+            client.count("mycount", 24);
+
+            assertEquals("p.mycount:24|c", transport.nextPacket());
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsARingSizeThatIsNotAPowerOfTwo() {
+        DisruptorStatsDClient.builder().withRingSize(1000);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsASingleProducerWithTelemetry() throws Exception {
+        DisruptorStatsDClient.builder()
+                .withTransport(new InMemoryTransport())
+                .withSingleProducer(true)
+                .withTelemetry(10, TimeUnit.SECONDS)
+                .build();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsAWaitStrategyWithoutTimeoutWhenLingering() throws Exception {
+        DisruptorStatsDClient.builder()
+                .withTransport(new InMemoryTransport())
+                .withLinger(5, TimeUnit.MILLISECONDS)
+                .withWaitStrategy(BusySpinWaitStrategy::new)
+                .build();
+    }
 }
@@ -0,0 +1,105 @@
+package com.timgroup.statsd;
+
+import org.junit.Test;
+
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.text.NumberFormat;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks {@link DoubleFormatter} against the DecimalFormat configuration it replaced.
+ */
+public class DoubleFormatterTest {
+
+    private static final double[] EDGE_CASES = {
+            0.0, -0.0, 1.0, -1.0, 0.1, 0.423, 123.456, 123.45678901234567890, 123456789012345.67890,
+            0.0000001, -0.0000001, 0.0000005, -0.0000005, 0.0000015, 0.0000025, 0.9999995, 0.99999949,
+            1.0000005, 999999.9999995, 1e-300, -1e-300, Double.MIN_VALUE, Double.MIN_NORMAL,
+            0x1p30, 0x1p30 + 0x1p-22, 0x1p33, 0x1p52 + 0.5, 0x1p53, 0x1p53 + 2, 1e23, Long.MAX_VALUE, Double.MAX_VALUE,
+            -Double.MAX_VALUE, Integer.MAX_VALUE + 0.5, 4294967295.9999995
+    };
+
+    private final NumberFormat valueFormat = decimalFormat();
+    private final NumberFormat fixedFormat = decimalFormat();
+
+    {
+        valueFormat.setMaximumFractionDigits(6);
+        fixedFormat.setMinimumFractionDigits(6);
+    }
+
+    @Test
+    public void matchesDecimalFormatOnEdgeCases() {
+        for (final double value : EDGE_CASES) {
+            assertParity(value);
+            assertParity(-value);
+        }
+    }
+
+    @Test
+    public void matchesDecimalFormatOnRandomValues() {
+        final Random random = new Random(8125);
+        for (int i = 0; i < 50000; i++) {
+            assertParity(random.nextDouble());
+            assertParity(random.nextDouble() * Math.pow(10, random.nextInt(17)));
+            assertParity((random.nextInt(2000000) - 1000000) / Math.pow(10, random.nextInt(9)));
+            assertParity(random.nextLong() / Math.pow(2, random.nextInt(64)));
+            final double bits = Double.longBitsToDouble(random.nextLong());
+            if (!Double.isInfinite(bits)) {
+                assertParity(bits);
+            }
+        }
+    }
+
+    @Test
+    public void formatsNaN() {
+        assertEquals("NaN", value(Double.NaN));
+        assertEquals("NaN", fixed(Double.NaN));
+    }
+
+    @Test
+    public void formatsInfinityAsDogStatsDParsesIt() {
+        assertEquals("Infinity", value(Double.POSITIVE_INFINITY));
+        assertEquals("-Infinity", value(Double.NEGATIVE_INFINITY));
+        assertEquals("Infinity", fixed(Double.POSITIVE_INFINITY));
+    }
+
+    @Test
+    public void appendsToExistingContent() {
+        final StringBuilder sb = new StringBuilder("mygauge:");
+        DoubleFormatter.appendValue(sb, 0.5);
+        sb.append("|@");
+        DoubleFormatter.appendFixed(sb, 0.5);
+        assertEquals("mygauge:0.5|@0.500000", sb.toString());
+    }
+
+    private void assertParity(final double value) {
+        assertEquals("value " + value, valueFormat.format(value), value(value));
+        assertEquals("fixed " + value, fixedFormat.format(value), fixed(value));
+    }
+
+    private static String value(final double value) {
+        final StringBuilder sb = new StringBuilder();
+        DoubleFormatter.appendValue(sb, value);
+        return sb.toString();
+    }
+
+    private static String fixed(final double value) {
+        final StringBuilder sb = new StringBuilder();
+        DoubleFormatter.appendFixed(sb, value);
+        return sb.toString();
+    }
+
+    private static NumberFormat decimalFormat() {
+        final NumberFormat numberFormatter = NumberFormat.getInstance(Locale.US);
+        numberFormatter.setGroupingUsed(false);
+        final DecimalFormat decimalFormat = (DecimalFormat) numberFormatter;
+        final DecimalFormatSymbols symbols = decimalFormat.getDecimalFormatSymbols();
+        symbols.setNaN("NaN");
+        decimalFormat.setDecimalFormatSymbols(symbols);
+        return numberFormatter;
+    }
+}
@@ -1,10 +1,13 @@
-
 package com.timgroup.statsd;
 
+import jnr.unixsocket.UnixDatagramChannel;
+import jnr.unixsocket.UnixSocketAddress;
+import jnr.unixsocket.UnixSocketOptions;
+
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.SocketException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.BlockingQueue;
@@ -13,16 +16,31 @@ import java.util.concurrent.LinkedBlockingQueue;
 
 class DummyStatsDServer {
     private final BlockingQueue<String> messagesReceived = new LinkedBlockingQueue<>();
-    private final DatagramSocket server;
+    private final DatagramChannel server;
+
+    DummyStatsDServer(int port) throws IOException {
+        this(DatagramChannel.open().bind(new InetSocketAddress(port)));
+    }
 
-    DummyStatsDServer(int port) throws SocketException {
-        server = new DatagramSocket(port);
+    /**
+     * Listens on a Unix domain datagram socket at the given path.
+     */
+    DummyStatsDServer(String socketPath) throws IOException {
+        this(UnixDatagramChannel.open().bind(new UnixSocketAddress(socketPath)));
+        // closing the channel doesn't interrupt a blocked receive, so wake up to check for it
+        server.setOption(UnixSocketOptions.SO_RCVTIMEO, 100);
+    }
+
+    private DummyStatsDServer(DatagramChannel server) {
+        this.server = server;
         Thread thread = new Thread(() -> {
-            while(!server.isClosed()) {
+            final ByteBuffer packet = ByteBuffer.allocate(65536);
+            while(server.isOpen()) {
                 try {
-                    final DatagramPacket packet = new DatagramPacket(new byte[1500], 1500);
+                    packet.clear();
                     server.receive(packet);
-                    for(String msg : new String(packet.getData(), NonBlockingStatsDClient.MESSAGE_CHARSET).split("\n", -1)) {
+                    final String data = new String(packet.array(), 0, packet.position(), NonBlockingStatsDClient.MESSAGE_CHARSET);
+                    for(String msg : data.split("\n", -1)) {
                         messagesReceived.add(msg.trim());
                     }
                 } catch (IOException ignored) {}
@@ -32,6 +50,13 @@ class DummyStatsDServer {
         thread.start();
     }
 
+    /**
+     * Returns the UDP port the server listens on, which is useful when it was created on port 0.
+     */
+    int port() throws IOException {
+        return ((InetSocketAddress) server.getLocalAddress()).getPort();
+    }
+
     String nextMessage() throws InterruptedException{
         return messagesReceived.take();
     }
@@ -41,7 +66,9 @@ class DummyStatsDServer {
     }
 
     void close() {
-        server.close();
+        try {
+            server.close();
+        } catch (IOException ignored) {}
     }
 
     void clear() {
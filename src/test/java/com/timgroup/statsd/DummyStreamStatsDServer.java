@@ -0,0 +1,90 @@
+package com.timgroup.statsd;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Accepts TCP connections and receives the lines written to them.
+ */
+class DummyStreamStatsDServer {
+    private final BlockingQueue<String> messagesReceived = new LinkedBlockingQueue<>();
+    private final List<Socket> connections = new CopyOnWriteArrayList<>();
+    private final ServerSocket server;
+
+    DummyStreamStatsDServer() throws IOException {
+        this(0);
+    }
+
+    DummyStreamStatsDServer(int port) throws IOException {
+        server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        Thread thread = new Thread(() -> {
+            while(!server.isClosed()) {
+                try {
+                    final Socket connection = server.accept();
+                    connections.add(connection);
+                    read(connection);
+                } catch (IOException ignored) {}
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void read(Socket connection) throws IOException {
+        final BufferedReader reader = new BufferedReader(
+                new InputStreamReader(connection.getInputStream(), NonBlockingStatsDClient.MESSAGE_CHARSET));
+        Thread thread = new Thread(() -> {
+            try {
+                String line;
+                while((line = reader.readLine()) != null) {
+                    messagesReceived.add(line);
+                }
+            } catch (IOException ignored) {}
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    int port() {
+        return server.getLocalPort();
+    }
+
+    String nextMessage() throws InterruptedException {
+        return messagesReceived.take();
+    }
+
+    /**
+     * Returns the next message, or null if none arrives in time.
+     */
+    String nextMessage(long timeout, TimeUnit unit) throws InterruptedException {
+        return messagesReceived.poll(timeout, unit);
+    }
+
+    /**
+     * Closes the connections accepted so far, as a server restart would.
+     */
+    void dropConnections() {
+        for (Socket connection : connections) {
+            try {
+                connection.close();
+            } catch (IOException ignored) {}
+        }
+        connections.clear();
+    }
+
+    void close() {
+        dropConnections();
+        try {
+            server.close();
+        } catch (IOException ignored) {}
+    }
+}
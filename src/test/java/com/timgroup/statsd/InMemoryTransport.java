@@ -0,0 +1,53 @@
+package com.timgroup.statsd;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Keeps the packets it is given, as Strings. Packets are 64 bytes, and a message too large for one may be sent in a
+ * packet of its own up to the given size.
+ */
+class InMemoryTransport implements Transport {
+    private final BlockingQueue<String> packets = new LinkedBlockingQueue<>();
+    private final int maxPacketSize;
+    private volatile boolean closed;
+
+    InMemoryTransport() {
+        this(64);
+    }
+
+    InMemoryTransport(int maxPacketSize) {
+        this.maxPacketSize = maxPacketSize;
+    }
+
+    @Override
+    public int packetSize() {
+        return 64;
+    }
+
+    @Override
+    public int maxPacketSize() {
+        return maxPacketSize;
+    }
+
+    @Override
+    public void send(ByteBuffer packet) {
+        final byte[] data = new byte[packet.remaining()];
+        packet.get(data);
+        packets.add(new String(data, NonBlockingStatsDClient.MESSAGE_CHARSET));
+    }
+
+    String nextPacket() throws InterruptedException {
+        return packets.take();
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+}
@@ -0,0 +1,115 @@
+package com.timgroup.statsd;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MpscRingTest {
+
+    @Test
+    public void roundsCapacityUpToPowerOfTwo() {
+        assertEquals(1, new MpscRing<String>(1).capacity());
+        assertEquals(128, new MpscRing<String>(100).capacity());
+        assertEquals(128, new MpscRing<String>(128).capacity());
+    }
+
+    @Test
+    public void rejectsOffersWhenFull() {
+        final MpscRing<String> ring = new MpscRing<>(4);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(ring.offer("m" + i));
+        }
+        assertFalse(ring.offer("m4"));
+        assertEquals(4, ring.size());
+
+        assertEquals("m0", ring.poll());
+        assertTrue(ring.offer("m4"));
+        for (int i = 1; i <= 4; i++) {
+            assertEquals("m" + i, ring.poll());
+        }
+        assertNull(ring.poll());
+        assertTrue(ring.isEmpty());
+    }
+
+    @Test
+    public void keepsTheWeightOfEachElementWhenWeighted() {
+        final MpscRing<String> weighted = new MpscRing<>(4, true);
+        assertTrue(weighted.offer("m0", 3));
+        assertTrue(weighted.offer("m1", 5));
+        assertEquals("m0", weighted.poll());
+        assertEquals(3, weighted.weight());
+        assertEquals("m1", weighted.poll());
+        assertEquals(5, weighted.weight());
+
+        final MpscRing<String> unweighted = new MpscRing<>(4);
+        assertTrue(unweighted.offer("m0", 3));
+        assertEquals("m0", unweighted.poll());
+        assertEquals(0, unweighted.weight());
+    }
+
+    @Test(timeout = 5000L)
+    public void pollTimesOutWhenEmpty() throws Exception {
+        final MpscRing<String> ring = new MpscRing<>(4);
+        assertNull(ring.poll(10, TimeUnit.MILLISECONDS));
+    }
+
+    @Test(timeout = 5000L)
+    public void wakingEndsAWaitingPoll() throws Exception {
+        final MpscRing<String> ring = new MpscRing<>(4);
+        final Thread waker = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (final InterruptedException ignored) {
+            }
+            ring.wake();
+        });
+        waker.start();
+        assertNull(ring.poll(1, TimeUnit.HOURS));
+        waker.join();
+    }
+
+    @Test(timeout = 10000L)
+    public void deliversEveryElementFromManyProducersInProducerOrder() throws Exception {
+        final int producers = 8;
+        final int perProducer = 100000;
+        final MpscRing<long[]> ring = new MpscRing<>(256);
+        final ExecutorService executor = Executors.newFixedThreadPool(producers);
+        final CountDownLatch start = new CountDownLatch(1);
+        try {
+            for (int p = 0; p < producers; p++) {
+                final int producer = p;
+                executor.execute(() -> {
+                    try {
+                        start.await();
+                    } catch (final InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < perProducer; i++) {
+                        final long[] element = {producer, i};
+                        while (!ring.offer(element)) {
+                            Thread.yield();
+                        }
+                    }
+                });
+            }
+            start.countDown();
+
+            final long[] next = new long[producers];
+            for (int received = 0; received < producers * perProducer; received++) {
+                final long[] element = ring.poll(5, TimeUnit.SECONDS);
+                assertEquals(next[(int) element[0]]++, element[1]);
+            }
+            assertNull(ring.poll());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -3,12 +3,28 @@ package com.timgroup.statsd;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
 import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class NonBlockingStatsDClientTest {
 
@@ -16,13 +32,15 @@ public class NonBlockingStatsDClientTest {
     private static DummyStatsDServer server;
     private static NonBlockingStatsDClient client;
 
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
     @BeforeClass
     public static void start() throws Exception {
-        ServerSocket socket = new ServerSocket(0);
-        int port = socket.getLocalPort();
+        server = new DummyStatsDServer(0);
+        int port = server.port();
 
         statsdServerPort = port;
-        server = new DummyStatsDServer(port);
         client = new NonBlockingStatsDClient("my.prefix", "localhost", port);
     }
 
@@ -456,4 +474,551 @@ public class NonBlockingStatsDClientTest {
 
         assertEquals("my.prefix.myset:myuserid|s|#foo:bar,baz", server.nextMessage());
     }
+
+    @Test(timeout=5000L) public void
+    aggregates_counts_until_flushed() throws Exception {
+        final NonBlockingStatsDClient aggregating = NonBlockingStatsDClient.builder()
+                .withPrefix("my.prefix")
+                .withAddress("localhost", statsdServerPort)
+                .withAggregation(1, TimeUnit.HOURS)
+                .build();
+        final Counter counter = aggregating.counter("myhandle", "foo:bar");
+        for (int i = 0; i < 100; i++) {
+            aggregating.increment("mycount", "foo:bar");
+            aggregating.count("mycount", 2, "foo:bar");
+            counter.increment();
+        }
+        aggregating.count("mysampled", 5, 1.0);
+
+        assertEquals("my.prefix.mysampled:5|c|@1.000000", server.nextMessage());
+
+        aggregating.close();
+
+        final Set<String> flushed = new HashSet<>(Arrays.asList(server.nextMessage(), server.nextMessage()));
+        assertEquals(new HashSet<>(Arrays.asList("my.prefix.mycount:300|c|#foo:bar", "my.prefix.myhandle:100|c|#foo:bar")),
+                flushed);
+    }
+
+    @Test(timeout=5000L) public void
+    flushes_aggregated_counts_periodically() throws Exception {
+        final NonBlockingStatsDClient aggregating = NonBlockingStatsDClient.builder()
+                .withPrefix("my.prefix")
+                .withAddress("localhost", statsdServerPort)
+                .withAggregation(50, TimeUnit.MILLISECONDS)
+                .build();
+        try {
+            aggregating.count("mycount", 20);
+            aggregating.count("mycount", 4);
+
+            assertEquals("my.prefix.mycount:24|c", server.nextMessage());
+        } finally {
+            aggregating.close();
+        }
+    }
+
+    @Test(timeout=5000L) public void
+    reports_counts_that_cancel_out_as_zero() throws Exception {
+        final NonBlockingStatsDClient aggregating = NonBlockingStatsDClient.builder()
+                .withPrefix("my.prefix")
+                .withAddress("localhost", statsdServerPort)
+                .withAggregation(1, TimeUnit.HOURS)
+                .build();
+        aggregating.increment("mycount", "foo:bar");
+        aggregating.decrement("mycount", "foo:bar");
+        aggregating.close();
+        client.count("mylast", 1);
+
+        assertEquals("my.prefix.mycount:0|c|#foo:bar", server.nextMessage());
+        assertEquals("my.prefix.mylast:1|c", server.nextMessage());
+    }
+
+    @Test(timeout=5000L) public void
+    keeps_last_gauge_value_and_distinct_set_members_until_flushed() throws Exception {
+        final NonBlockingStatsDClient aggregating = NonBlockingStatsDClient.builder()
+                .withPrefix("my.prefix")
+                .withAddress("localhost", statsdServerPort)
+                .withAggregation(1, TimeUnit.HOURS)
+                .build();
+        final Gauge gauge = aggregating.gauge("myhandle");
+        for (int i = 0; i < 100; i++) {
+            aggregating.recordGaugeValue("mygauge", i * 0.5, "foo:bar");
+            aggregating.recordGaugeValue("mylonggauge", i);
+            aggregating.recordSetValue("myset", "user" + (i % 3), "foo:bar");
+            gauge.record(i);
+        }
+        aggregating.recordGaugeValue("mysampled", 5, 1.0);
+
+        assertEquals("my.prefix.mysampled:5|g|@1.000000", server.nextMessage());
+
+        aggregating.close();
+
+        final Set<String> flushed = new HashSet<>();
+        for (int i = 0; i < 6; i++) {
+            flushed.add(server.nextMessage());
+        }
+        assertEquals(new HashSet<>(Arrays.asList(
+                "my.prefix.mygauge:49.5|g|#foo:bar",
+                "my.prefix.mylonggauge:99|g",
+                "my.prefix.myhandle:99|g",
+                "my.prefix.myset:user0|s|#foo:bar",
+                "my.prefix.myset:user1|s|#foo:bar",
+                "my.prefix.myset:user2|s|#foo:bar")), flushed);
+    }
+
+    @Test(timeout=5000L) public void
+    packs_histogram_and_timer_values() throws Exception {
+        final NonBlockingStatsDClient packing = NonBlockingStatsDClient.builder()
+                .withPrefix("my.prefix")
+                .withAddress("localhost", statsdServerPort)
+                .withSamplePacking(1, TimeUnit.HOURS)
+                .build();
+        final Histogram histogram = packing.histogram("myhandle", "foo:bar");
+        packing.recordHistogramValue("myhistogram", 1, "foo:bar");
+        packing.recordHistogramValue("myhistogram", 0.423, "foo:bar");
+        packing.recordExecutionTime("mytime", 10);
+        packing.recordExecutionTime("mytime", 20);
+        histogram.record(3);
+        histogram.record(4.5);
+        packing.recordHistogramValue("mysampled", 5, 1.0);
+
+        assertEquals("my.prefix.mysampled:5|h|@1.000000", server.nextMessage());
+
+        packing.close();
+
+        final Set<String> flushed = new HashSet<>(Arrays.asList(server.nextMessage(), server.nextMessage(), server.nextMessage()));
+        assertEquals(new HashSet<>(Arrays.asList(
+                "my.prefix.myhistogram:1:0.423|h|#foo:bar",
+                "my.prefix.mytime:10:20|ms",
+                "my.prefix.myhandle:3:4.5|h|#foo:bar")), flushed);
+    }
+
+    @Test(timeout=5000L) public void
+    starts_a_new_packed_line_when_full() throws Exception {
+        final NonBlockingStatsDClient packing = NonBlockingStatsDClient.builder()
+                .withPrefix("my.prefix")
+                .withAddress("localhost", statsdServerPort)
+                .withConstantTags("env:test")
+                .withSamplePacking(1, TimeUnit.HOURS)
+                .build();
+        for (int i = 0; i < 1000; i++) {
+            packing.recordHistogramValue("myhistogram", 1000000 + i, "foo:bar");
+        }
+        packing.close();
+
+        int values = 0;
+        while (values < 1000) {
+            final String message = server.nextMessage();
+            assertTrue(message.length() <= 1400);
+            assertTrue(message.startsWith("my.prefix.myhistogram:"));
+            assertTrue(message.endsWith("|h|#env:test,foo:bar"));
+            values += message.split(":").length - 3;
+        }
+        assertEquals(1000, values);
+    }
+
+    @Test(timeout=5000L) public void
+    drops_messages_beyond_the_queue_memory_budget() throws Exception {
+        final BlockingAddressLookup lookup = new BlockingAddressLookup(statsdServerPort);
+        final NonBlockingStatsDClient budgeted = NonBlockingStatsDClient.builder()
+                .withPrefix("my.prefix")
+                .withAddressLookup(lookup)
+                .withQueueMemoryBudget(100)
+                .build();
+        try {
+            budgeted.count("first", 1);
+            lookup.awaitCall();
+            // the consumer is now stuck sending "first" while the others queue up: 21 bytes each
+            for (int i = 0; i < 10; i++) {
+                budgeted.count("mycount", i);
+            }
+            lookup.release();
+
+            assertEquals("my.prefix.first:1|c", server.nextMessage());
+            for (int i = 0; i < 4; i++) {
+                assertEquals("my.prefix.mycount:" + i + "|c", server.nextMessage());
+            }
+            budgeted.count("last", 1);
+            assertEquals("my.prefix.last:1|c", server.nextMessage());
+        } finally {
+            budgeted.close();
+        }
+    }
+
+    @Test(timeout=5000L) public void
+    counts_dropped_messages_by_kind() throws Exception {
+        final BlockingAddressLookup lookup = new BlockingAddressLookup(statsdServerPort);
+        final NonBlockingStatsDClient bounded = NonBlockingStatsDClient.builder()
+                .withPrefix("my.prefix")
+                .withAddressLookup(lookup)
+                .withQueueSize(4)
+                .build();
+        try {
+            bounded.count("first", 1);
+            lookup.awaitCall();
+            for (int i = 0; i < 4; i++) {
+                bounded.recordGaugeValue("mygauge", i);
+            }
+            bounded.count("mycount", 1);
+            bounded.recordGaugeValue("mygauge", 4);
+            bounded.recordSetValue("myset", "a");
+            bounded.recordEvent(Event.builder().withTitle("title").withText("text").build());
+
+            final Map<String, Long> dropped = bounded.getDroppedMessages();
+            assertEquals(Long.valueOf(1), dropped.get("counter"));
+            assertEquals(Long.valueOf(1), dropped.get("gauge"));
+            assertEquals(Long.valueOf(1), dropped.get("set"));
+            assertEquals(Long.valueOf(1), dropped.get("event"));
+            assertEquals(Long.valueOf(0), dropped.get("timer"));
+            lookup.release();
+
+            assertEquals("my.prefix.first:1|c", server.nextMessage());
+            for (int i = 0; i < 4; i++) {
+                assertEquals("my.prefix.mygauge:" + i + "|g", server.nextMessage());
+            }
+        } finally {
+            bounded.close();
+        }
+    }
+
+    @Test(timeout=5000L) public void
+    blocks_until_the_queue_has_room() throws Exception {
+        final BlockingAddressLookup lookup = new BlockingAddressLookup(statsdServerPort);
+        final NonBlockingStatsDClient blocking = NonBlockingStatsDClient.builder()
+                .withPrefix("my.prefix")
+                .withAddressLookup(lookup)
+                .withQueueSize(1)
+                .withOverflowPolicy(OverflowPolicy.block(5, TimeUnit.SECONDS))
+                .build();
+        try {
+            blocking.count("first", 1);
+            lookup.awaitCall();
+            blocking.count("second", 1);
+            final Thread releaser = new Thread(() -> {
+                try {
+                    Thread.sleep(100);
+                } catch (final InterruptedException ignored) {
+                }
+                lookup.release();
+            });
+            releaser.start();
+            blocking.count("third", 1);
+
+            assertEquals("my.prefix.first:1|c", server.nextMessage());
+            assertEquals("my.prefix.second:1|c", server.nextMessage());
+            assertEquals("my.prefix.third:1|c", server.nextMessage());
+            assertEquals(0, blocking.getDroppedMessages().values().stream().mapToLong(Long::longValue).sum());
+        } finally {
+            blocking.close();
+        }
+    }
+
+    @Test(timeout=5000L) public void
+    reports_telemetry_when_closed() throws Exception {
+        final NonBlockingStatsDClient reporting = NonBlockingStatsDClient.builder()
+                .withPrefix("my.prefix")
+                .withAddress("localhost", statsdServerPort)
+                .withConstantTags("env:test")
+                .withTelemetry(1, TimeUnit.HOURS)
+                .withClientId("test")
+                .build();
+        for (int i = 0; i < 3; i++) {
+            reporting.count("mycount", i);
+        }
+        for (int i = 0; i < 3; i++) {
+            assertEquals("my.prefix.mycount:" + i + "|c|#env:test", server.nextMessage());
+        }
+
+        reporting.close();
+
+        final Set<String> reported = new HashSet<>();
+        for (int i = 0; i < 11; i++) {
+            reported.add(server.nextMessage());
+        }
+        assertTrue(reported.toString(), reported.contains("statsd.client.messages_queued:3|c|#env:test,client_id:test"));
+        assertTrue(reported.toString(), reported.contains("statsd.client.messages_dropped:0|c|#env:test,client_id:test,reason:queue_full"));
+        assertTrue(reported.toString(), reported.contains("statsd.client.send_errors:0|c|#env:test,client_id:test"));
+        assertTrue(reported.toString(), reported.contains("statsd.client.queue_bytes:0|g|#env:test,client_id:test"));
+    }
+
+    @Test(timeout=5000L) public void
+    sends_messages_larger_than_a_udp_packet_over_a_unix_socket() throws Exception {
+        final String socketPath = folder.getRoot().toPath().resolve("dsd.socket").toString();
+        final DummyStatsDServer unixServer = new DummyStatsDServer(socketPath);
+        final NonBlockingStatsDClient unixClient = NonBlockingStatsDClient.builder()
+                .withPrefix("my.prefix")
+                .withUnixSocket(socketPath)
+                .build();
+        final char[] value = new char[4000];
+        Arrays.fill(value, 'x');
+        final String tag = "large:" + new String(value);
+        try {
+            unixClient.count("mycount", 24);
+            unixClient.count("mycount", 1, tag);
+
+            assertEquals("my.prefix.mycount:24|c", unixServer.nextMessage());
+            assertEquals("my.prefix.mycount:1|c|#" + tag, unixServer.nextMessage());
+        } finally {
+            unixClient.close();
+            unixServer.close();
+        }
+        assertEquals(0L, (long) unixClient.getDroppedMessages().get("counter"));
+    }
+
+    @Test(timeout=10000L) public void
+    buffers_messages_over_tcp_until_the_server_is_up() throws Exception {
+        final int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        final NonBlockingStatsDClient tcpClient = NonBlockingStatsDClient.builder()
+                .withPrefix("my.prefix")
+                .withTcpAddress("localhost", port)
+                .build();
+        DummyStreamStatsDServer tcpServer = null;
+        try {
+            tcpClient.count("mycount", 24);
+            tcpClient.gauge("mygauge", 42);
+            Thread.sleep(100);
+            tcpServer = new DummyStreamStatsDServer(port);
+
+            assertEquals("my.prefix.mycount:24|c", tcpServer.nextMessage());
+            assertEquals("my.prefix.mygauge:42|g", tcpServer.nextMessage());
+        } finally {
+            tcpClient.close();
+            if (tcpServer != null) {
+                tcpServer.close();
+            }
+        }
+    }
+
+    @Test(timeout=10000L) public void
+    reconnects_over_tcp_when_the_connection_drops() throws Exception {
+        final DummyStreamStatsDServer tcpServer = new DummyStreamStatsDServer();
+        final NonBlockingStatsDClient tcpClient = NonBlockingStatsDClient.builder()
+                .withPrefix("my.prefix")
+                .withTcpAddress("localhost", tcpServer.port())
+                .build();
+        try {
+            tcpClient.count("mycount", 24);
+            assertEquals("my.prefix.mycount:24|c", tcpServer.nextMessage());
+
+            tcpServer.dropConnections();
+            // what is written before the client notices the drop is lost, as with any TCP client
+            String message;
+            do {
+                tcpClient.count("mycount", 25);
+                message = tcpServer.nextMessage(100, TimeUnit.MILLISECONDS);
+            } while (message == null);
+            assertEquals("my.prefix.mycount:25|c", message);
+        } finally {
+            tcpClient.close();
+            tcpServer.close();
+        }
+    }
+
+    @Test(timeout=5000L) public void
+    sends_packets_through_a_given_transport() throws Exception {
+        final InMemoryTransport transport = new InMemoryTransport();
+        final NonBlockingStatsDClient memoryClient = NonBlockingStatsDClient.builder()
+                .withPrefix("my.prefix")
+                .withTransport(transport)
+                .build();
+        try {
+            memoryClient.count("mycount", 24);
+            assertEquals("my.prefix.mycount:24|c", transport.nextPacket());
+
+            // the transport's packet size of 64 bytes splits these up
+            memoryClient.recordExecutionTime("first.timer", 1);
+            memoryClient.recordExecutionTime("second.timer", 2);
+            memoryClient.recordExecutionTime("third.timer", 3);
+            memoryClient.recordExecutionTime("fourth.timer", 4);
+            final StringBuilder received = new StringBuilder();
+            while (received.length() < 96) {
+                final String packet = transport.nextPacket();
+                assertTrue(packet, packet.length() <= 64);
+                received.append(received.length() > 0 ? "\n" : "").append(packet);
+            }
+            assertEquals("my.prefix.first.timer:1|ms\nmy.prefix.second.timer:2|ms\n"
+                    + "my.prefix.third.timer:3|ms\nmy.prefix.fourth.timer:4|ms", received.toString());
+        } finally {
+            memoryClient.close();
+        }
+        assertTrue(transport.isClosed());
+    }
+
+    @Test(timeout=5000L) public void
+    connects_again_when_the_address_of_a_connected_socket_changes() throws Exception {
+        final DummyStatsDServer otherServer = new DummyStatsDServer(0);
+        final AtomicReference<InetSocketAddress> address =
+                new AtomicReference<>(new InetSocketAddress("localhost", server.port()));
+        final NonBlockingStatsDClient connectedClient = NonBlockingStatsDClient.builder()
+                .withPrefix("my.prefix")
+                .withAddressLookup(address::get)
+                .withConnectedSocket(true)
+                .build();
+        try {
+            connectedClient.count("mycount", 24);
+            assertEquals("my.prefix.mycount:24|c", server.nextMessage());
+
+            address.set(new InetSocketAddress("localhost", otherServer.port()));
+            connectedClient.count("mycount", 25);
+            assertEquals("my.prefix.mycount:25|c", otherServer.nextMessage());
+        } finally {
+            connectedClient.close();
+            otherServer.close();
+        }
+    }
+
+    @Test(timeout=5000L) public void
+    reports_an_unreachable_port_over_a_connected_socket() throws Exception {
+        final DummyStatsDServer closedServer = new DummyStatsDServer(0);
+        final int port = closedServer.port();
+        closedServer.close();
+        final BlockingQueue<Exception> errors = new LinkedBlockingQueue<>();
+        final NonBlockingStatsDClient connectedClient = NonBlockingStatsDClient.builder()
+                .withAddress("localhost", port)
+                .withConnectedSocket(true)
+                .withErrorHandler(errors::add)
+                .build();
+        try {
+            // the error comes back for one packet and is reported on writing the next
+            Exception error;
+            do {
+                connectedClient.count("mycount", 24);
+                error = errors.poll(100, TimeUnit.MILLISECONDS);
+            } while (error == null);
+            assertTrue(error.toString(), error instanceof PortUnreachableException);
+        } finally {
+            connectedClient.close();
+        }
+    }
+
+    @Test(timeout=5000L) public void
+    sends_messages_larger_than_the_default_packet_size_when_configured() throws Exception {
+        final String aspect = String.join("", Collections.nCopies(3000, "a"));
+        final NonBlockingStatsDClient largePacketClient = NonBlockingStatsDClient.builder()
+                .withPrefix("my.prefix")
+                .withAddress("localhost", server.port())
+                .withMaxPacketSize(8192)
+                .build();
+        try {
+            largePacketClient.count(aspect, 24);
+            assertEquals("my.prefix." + aspect + ":24|c", server.nextMessage());
+        } finally {
+            largePacketClient.close();
+        }
+    }
+
+    @Test(timeout=5000L) public void
+    sizes_packets_after_the_loopback_interface_when_asked_to() throws Exception {
+        final String aspect = String.join("", Collections.nCopies(3000, "a"));
+        final NonBlockingStatsDClient autoSizedClient = NonBlockingStatsDClient.builder()
+                .withPrefix("my.prefix")
+                .withAddress("localhost", server.port())
+                .withAutoPacketSize(true)
+                .build();
+        try {
+            autoSizedClient.count(aspect, 24);
+            assertEquals("my.prefix." + aspect + ":24|c", server.nextMessage());
+        } finally {
+            autoSizedClient.close();
+        }
+    }
+
+    @Test(timeout=5000L) public void
+    sends_a_message_too_large_for_a_packet_in_a_packet_of_its_own() throws Exception {
+        final String aspect = String.join("", Collections.nCopies(100, "a"));
+        final InMemoryTransport transport = new InMemoryTransport(256);
+        final NonBlockingStatsDClient oversizeClient = NonBlockingStatsDClient.builder()
+                .withPrefix("my.prefix")
+                .withTransport(transport)
+                .withLinger(1, TimeUnit.HOURS)
+                .build();
+        oversizeClient.count("first", 1);
+        oversizeClient.count(aspect, 2);
+        oversizeClient.count("second", 3);
+
+        assertEquals("my.prefix." + aspect + ":2|c", transport.nextPacket());
+        oversizeClient.close();
+        assertEquals("my.prefix.first:1|c\nmy.prefix.second:3|c", transport.nextPacket());
+    }
+
+    @Test(timeout=5000L) public void
+    drops_a_message_too_large_for_the_transport() throws Exception {
+        final String aspect = String.join("", Collections.nCopies(300, "a"));
+        final InMemoryTransport transport = new InMemoryTransport(256);
+        final NonBlockingStatsDClient oversizeClient = NonBlockingStatsDClient.builder()
+                .withPrefix("my.prefix")
+                .withTransport(transport)
+                .build();
+        try {
+            oversizeClient.count(aspect, 1);
+            oversizeClient.count("mycount", 2);
+
+            assertEquals("my.prefix.mycount:2|c", transport.nextPacket());
+            assertEquals(1L, (long) oversizeClient.getDroppedMessages().get("counter"));
+        } finally {
+            oversizeClient.close();
+        }
+    }
+
+    @Test(timeout=5000L) public void
+    lingers_for_more_messages_before_sending_a_packet() throws Exception {
+        final InMemoryTransport transport = new InMemoryTransport();
+        final NonBlockingStatsDClient lingeringClient = NonBlockingStatsDClient.builder()
+                .withPrefix("my.prefix")
+                .withTransport(transport)
+                .withLinger(200, TimeUnit.MILLISECONDS)
+                .build();
+        try {
+            final long start = System.nanoTime();
+            lingeringClient.count("first", 1);
+            Thread.sleep(20);
+            lingeringClient.count("second", 2);
+
+            assertEquals("my.prefix.first:1|c\nmy.prefix.second:2|c", transport.nextPacket());
+            assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(200));
+        } finally {
+            lingeringClient.close();
+        }
+    }
+
+    @Test(timeout=5000L) public void
+    sends_a_lingering_packet_when_closed() throws Exception {
+        final InMemoryTransport transport = new InMemoryTransport();
+        final NonBlockingStatsDClient lingeringClient = NonBlockingStatsDClient.builder()
+                .withPrefix("my.prefix")
+                .withTransport(transport)
+                .withLinger(1, TimeUnit.HOURS)
+                .build();
+        lingeringClient.count("mycount", 24);
+        lingeringClient.close();
+
+        assertEquals("my.prefix.mycount:24|c", transport.nextPacket());
+    }
+
+    private static final class BlockingAddressLookup implements Callable<InetSocketAddress> {
+        private final InetSocketAddress address;
+        private final CountDownLatch called = new CountDownLatch(1);
+        private final CountDownLatch released = new CountDownLatch(1);
+
+        BlockingAddressLookup(final int port) {
+            address = new InetSocketAddress("localhost", port);
+        }
+
+        @Override
+        public InetSocketAddress call() throws Exception {
+            called.countDown();
+            released.await();
+            return address;
+        }
+
+        void awaitCall() throws InterruptedException {
+            called.await();
+        }
+
+        void release() {
+            released.countDown();
+        }
+    }
 }
@@ -0,0 +1,76 @@
+package com.timgroup.statsd;
+
+import com.lmax.disruptor.RingBuffer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Runs the clients from a class loader that only sees this library and the disruptor, as for users who leave out
+ * the optional jnr-unixsocket dependency, which only Unix sockets need.
+ */
+public class OptionalUnixSocketDependencyTest {
+    private URLClassLoader loader;
+    private DummyStatsDServer server;
+    private DummyStreamStatsDServer streamServer;
+
+    @Before
+    public void setUp() throws Exception {
+        loader = new URLClassLoader(new URL[] {
+                StatsDClient.class.getProtectionDomain().getCodeSource().getLocation(),
+                RingBuffer.class.getProtectionDomain().getCodeSource().getLocation()
+        }, null);
+        server = new DummyStatsDServer(0);
+        streamServer = new DummyStreamStatsDServer();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+        streamServer.close();
+        loader.close();
+    }
+
+    @Test(expected = ClassNotFoundException.class)
+    public void hidesJnr() throws Exception {
+        loader.loadClass("jnr.unixsocket.UnixSocketAddress");
+    }
+
+    @Test(timeout = 5000L)
+    public void sendsOverUdpWithoutJnr() throws Exception {
+        for (final String client : new String[] {"NonBlockingStatsDClient", "DisruptorStatsDClient"}) {
+            send(client, "withAddress", server.port());
+            assertEquals("my.prefix.mycount:1|c", server.nextMessage());
+        }
+    }
+
+    @Test(timeout = 5000L)
+    public void sendsOverTcpWithoutJnr() throws Exception {
+        for (final String client : new String[] {"NonBlockingStatsDClient", "DisruptorStatsDClient"}) {
+            send(client, "withTcpAddress", streamServer.port());
+            assertEquals("my.prefix.mycount:1|c", streamServer.nextMessage());
+        }
+    }
+
+    /**
+     * Builds the given client through the isolated class loader, sends a count and closes it.
+     */
+    private void send(final String client, final String withAddress, final int port) throws Exception {
+        final Class<?> clientClass = loader.loadClass("com.timgroup.statsd." + client);
+        final Object builder = clientClass.getMethod("builder").invoke(null);
+        builder.getClass().getMethod("withPrefix", String.class).invoke(builder, "my.prefix");
+        builder.getClass().getMethod(withAddress, String.class, int.class).invoke(builder, "localhost", port);
+        final Object statsd = builder.getClass().getMethod("build").invoke(builder);
+        try {
+            clientClass.getMethod("count", String.class, long.class, String[].class)
+                    .invoke(statsd, "mycount", 1L, new String[0]);
+        } finally {
+            clientClass.getMethod("close").invoke(statsd);
+        }
+    }
+}
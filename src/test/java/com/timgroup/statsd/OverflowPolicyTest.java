@@ -0,0 +1,101 @@
+package com.timgroup.statsd;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class OverflowPolicyTest {
+
+    @Test
+    public void dropNewestGivesUpRightAway() {
+        final AtomicLong evictions = new AtomicLong();
+        assertFalse(OverflowPolicy.dropNewest().awaitRetry(0, System.nanoTime(), evictions));
+        assertEquals(0, evictions.get());
+    }
+
+    @Test
+    public void dropOldestRequestsOneEvictionAndWithdrawsItWhenGivingUp() {
+        final OverflowPolicy policy = OverflowPolicy.dropOldest();
+        final AtomicLong evictions = new AtomicLong();
+        int attempt = 0;
+        while (policy.awaitRetry(attempt, 0, evictions)) {
+            assertEquals(1, evictions.get());
+            attempt++;
+        }
+        assertTrue(attempt > 0);
+        assertEquals(0, evictions.get());
+    }
+
+    @Test
+    public void dropOldestWithdrawsTheRequestWhenARetrySucceedsWithoutAnEviction() {
+        final OverflowPolicy policy = OverflowPolicy.dropOldest();
+        final AtomicLong evictions = new AtomicLong();
+        assertTrue(policy.awaitRetry(0, 0, evictions));
+        // the consumer took a message as usual, so the next attempt succeeds
+        policy.settled(1, evictions);
+
+        assertEquals(0, evictions.get());
+        // the consumer doesn't drop the next message it takes
+        assertFalse(OverflowPolicy.takeEviction(evictions));
+    }
+
+    @Test
+    public void dropOldestKeepsNothingToWithdrawOnceTheConsumerEvicted() {
+        final OverflowPolicy policy = OverflowPolicy.dropOldest();
+        final AtomicLong evictions = new AtomicLong();
+        assertTrue(policy.awaitRetry(0, 0, evictions));
+        assertTrue(OverflowPolicy.takeEviction(evictions));
+        policy.settled(1, evictions);
+
+        assertEquals(0, evictions.get());
+    }
+
+    @Test
+    public void settlingAFirstAttemptLeavesOtherRequestsAlone() {
+        final AtomicLong evictions = new AtomicLong(1);
+        OverflowPolicy.dropOldest().settled(0, evictions);
+        assertEquals(1, evictions.get());
+    }
+
+    @Test
+    public void evictionsAreTakenOnce() {
+        final AtomicLong evictions = new AtomicLong(1);
+        assertTrue(OverflowPolicy.takeEviction(evictions));
+        assertFalse(OverflowPolicy.takeEviction(evictions));
+        assertEquals(0, evictions.get());
+    }
+
+    @Test(timeout = 5000L)
+    public void blockWaitsUntilTimeout() {
+        final OverflowPolicy policy = OverflowPolicy.block(50, TimeUnit.MILLISECONDS);
+        final AtomicLong evictions = new AtomicLong();
+        final long start = System.nanoTime();
+        int attempt = 0;
+        while (policy.awaitRetry(attempt, start, evictions)) {
+            attempt++;
+        }
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+    }
+
+    @Test
+    public void sampleDownShedsInProportionAboveHalfFull() {
+        final OverflowPolicy policy = OverflowPolicy.sampleDown();
+        assertTrue(policy.samplesDown());
+        assertFalse(OverflowPolicy.dropNewest().samplesDown());
+
+        int admitted = 0;
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(policy.admit(0.5));
+            assertFalse(policy.admit(1.0));
+            if (policy.admit(0.75)) {
+                admitted++;
+            }
+        }
+        assertTrue("admitted " + admitted, admitted > 4000 && admitted < 6000);
+    }
+}
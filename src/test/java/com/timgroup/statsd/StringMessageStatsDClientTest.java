@@ -3,10 +3,13 @@ package com.timgroup.statsd;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 
 public class StringMessageStatsDClientTest {
@@ -243,6 +246,119 @@ public class StringMessageStatsDClientTest {
         assertMessageReceived("my-record:some-value|s|#tag-1,tag-2");
     }
 
+    @Test
+    public void counterHandle() {
+        final Counter counter = client().counter("mycount", "tag-1", "tag-2");
+
+        counter.count(24);
+        assertMessageReceived("mycount:24|c|#tag-1,tag-2");
+
+        counter.count(42, 1.0);
+        assertMessageReceived("mycount:42|c|@1.000000|#tag-1,tag-2");
+
+        counter.increment();
+        assertMessageReceived("mycount:1|c|#tag-1,tag-2");
+
+        counter.decrement();
+        assertMessageReceived("mycount:-1|c|#tag-1,tag-2");
+    }
+
+    @Test
+    public void gaugeHandle() {
+        final Gauge gauge = client().gauge("mygauge");
+
+        gauge.record(123.456);
+        assertMessageReceived("mygauge:123.456|g");
+
+        gauge.record(234.567, 1.0);
+        assertMessageReceived("mygauge:234.567|g|@1.000000");
+
+        gauge.record(345L);
+        assertMessageReceived("mygauge:345|g");
+
+        gauge.record(456L, 1.0);
+        assertMessageReceived("mygauge:456|g|@1.000000");
+    }
+
+    @Test
+    public void timerHandle() {
+        final Timer timer = client().timer("mytimer", "tag-1");
+
+        timer.record(123L);
+        assertMessageReceived("mytimer:123|ms|#tag-1");
+
+        timer.record(234L, 1.0);
+        assertMessageReceived("mytimer:234|ms|@1.000000|#tag-1");
+    }
+
+    @Test
+    public void histogramHandle() {
+        final Histogram histogram = client().histogram("myhistogram", (String[]) null);
+
+        histogram.record(123.456);
+        assertMessageReceived("myhistogram:123.456|h");
+
+        histogram.record(234.567, 1.0);
+        assertMessageReceived("myhistogram:234.567|h|@1.000000");
+
+        histogram.record(345L);
+        assertMessageReceived("myhistogram:345|h");
+
+        histogram.record(456L, 1.0);
+        assertMessageReceived("myhistogram:456|h|@1.000000");
+    }
+
+    @Test
+    public void setHandle() {
+        final SetMetric set = client().set("my-record", "tag-1", "tag-2");
+
+        set.record("some-value");
+        assertMessageReceived("my-record:some-value|s|#tag-1,tag-2");
+    }
+
+    @Test
+    public void reusedBufferDoesNotLeakPreviousMessage() {
+        client().recordSetValue("my-record", "some-much-longer-value", "tag-1", "tag-2", "tag-3");
+        assertMessageReceived("my-record:some-much-longer-value|s|#tag-1,tag-2,tag-3");
+
+        client().count("c", 1);
+        assertMessageReceived("c:1|c");
+    }
+
+    @Test
+    public void sendMessageCanEncodeIntoByteBuffer() {
+        final ByteBuffer buffer = ByteBuffer.allocate(64);
+        final StringMessageStatsDClient byteClient = new StringMessageStatsDClient() {
+            @Override
+            protected void send(String message) {
+                throw new AssertionError("send(String) should not be used");
+            }
+
+            @Override
+            protected void sendMessage(CharSequence message) {
+                final int start = buffer.position();
+                encode(message, buffer);
+                assertEquals(encodedLength(message), buffer.position() - start);
+            }
+
+            @Override
+            public String getPrefix() {
+                return "";
+            }
+
+            @Override
+            public void close() {}
+        };
+        final String value = "\u00e9\u2020\ud83d\ude00"; // "é†😀"
+
+        byteClient.recordSetValue("myset", value, "tag-1");
+
+        buffer.flip();
+        final byte[] sent = new byte[buffer.remaining()];
+        buffer.get(sent);
+        assertArrayEquals(("myset:" + value + "|s|#tag-1").getBytes(StandardCharsets.UTF_8), sent);
+    }
+
     @Test
     public void tagString() {
         assertEquals("", StringMessageStatsDClient.tagString(null, null));